@@ -0,0 +1,412 @@
+package com.philschatz.xslt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.WeakHashMap;
+
+import net.sf.saxon.Controller;
+import net.sf.saxon.expr.StackFrame;
+import net.sf.saxon.expr.XPathContext;
+import net.sf.saxon.om.GroundedValue;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.om.Sequence;
+import net.sf.saxon.om.StandardNames;
+import net.sf.saxon.om.StructuredQName;
+import net.sf.saxon.om.TreeInfo;
+import net.sf.saxon.trace.InstructionInfo;
+import net.sf.saxon.tree.tiny.TinyTree;
+import net.sf.saxon.value.IntegerRange;
+
+/**
+ * Attributes the temporary trees and sequences a transform builds to the
+ * variable or parameter of the template or function that bound them, and
+ * keeps the most each template or function held in its variables at one time.
+ *
+ * The sizes are sampled cheaply: on every traced instruction the slots of the
+ * innermost template or function are compared, by identity, with what they
+ * held the last time, and only a value that changed is measured. A long
+ * sequence is measured from a few of its items, spread over it, and the rest
+ * is extrapolated, so rebinding a growing sequence (e.g. in xsl:iterate) does
+ * not walk it every time. A tree is charged once, to the first variable it was
+ * seen in, so a tree that is passed on as a parameter stays with the variable
+ * that built it; likewise a tree or sequence held by several frames on the
+ * stack counts once towards what is held at a time. Documents from the
+ * document pool and the principal source are not counted. The sizes are the
+ * same estimates as in {@link ResourceReport}. Only used from the transform
+ * thread.
+ */
+public class AllocationTracker implements RunReport {
+  // A reference in a sequence plus a share of the item
+  private static final int BYTES_PER_ITEM = 16;
+  // How many items of a sequence are looked at to estimate its size
+  private static final int SAMPLED_ITEMS = 32;
+
+  private final Controller controller;
+  private final InstructionTable table;
+  // By component id
+  private Component[] components = new Component[64];
+  // Estimated size of every tree seen so far, 0 for source documents
+  private final WeakHashMap<TreeInfo, Long> treeBytes = new WeakHashMap<>();
+  private final WeakHashMap<TreeInfo, Boolean> charged = new WeakHashMap<>();
+  // Trees and sequences bound in a frame on the stack, counted once however many slots hold them
+  private final IdentityHashMap<Object, Holding> held = new IdentityHashMap<>();
+  private Frame[] frames = new Frame[64];
+  private int depth;
+  private long retained;
+  private long peakRetained;
+  private String peakComponent;
+  private int peakDepth;
+
+  private static class Component {
+    final String name;
+    long calls;
+    long peak;
+    Allocator[] bySlot = new Allocator[8];
+
+    Component(String name) {
+      this.name = name;
+    }
+  }
+
+  private static class Allocator {
+    final String name;
+    long bindings;
+    long trees;
+    long items;
+    long bytes;
+    long largest;
+
+    Allocator(String name) {
+      this.name = name;
+    }
+  }
+
+  private static class Holding {
+    final long bytes;
+    int slots;
+
+    Holding(long bytes) {
+      this.bytes = bytes;
+    }
+  }
+
+  /** A template or function call; reused from one call to the next */
+  private static class Frame {
+    Component component;
+    StackFrame stackFrame;
+    Sequence<?>[] seen = new Sequence<?>[8];
+    long[] bytes = new long[8];
+    // The trees and sequences each slot holds, see held
+    Object[][] parts = new Object[8][];
+    long total;
+    long peak;
+  }
+
+  public AllocationTracker(InstructionTable table, Controller controller) {
+    this.table = table;
+    this.controller = controller;
+  }
+
+  private static boolean isComponent(int construct) {
+    return construct == StandardNames.XSL_TEMPLATE || construct == StandardNames.XSL_FUNCTION;
+  }
+
+  public void enter(InstructionInfo info, XPathContext context) {
+    if (isComponent(info.getConstructType())) {
+      if (depth == frames.length) {
+        frames = Arrays.copyOf(frames, depth * 2);
+      }
+      Frame f = frames[depth];
+      if (f == null) {
+        f = frames[depth] = new Frame();
+      }
+      depth++;
+      f.component = componentOf(info, context);
+      f.component.calls++;
+      f.stackFrame = context.getStackFrame();
+      f.total = 0;
+      f.peak = 0;
+    } else if (depth > 0) {
+      sample(frames[depth - 1]);
+    }
+  }
+
+  public void leave(InstructionInfo info) {
+    if (!isComponent(info.getConstructType()) || depth == 0) {
+      return;
+    }
+    Frame f = frames[depth - 1];
+    sample(f);
+    f.component.peak = Math.max(f.component.peak, f.peak);
+    for (int slot = 0; slot < f.parts.length; slot++) {
+      release(f.parts[slot]);
+    }
+    Arrays.fill(f.seen, null);
+    Arrays.fill(f.bytes, 0);
+    Arrays.fill(f.parts, null);
+    f.stackFrame = null;
+    depth--;
+  }
+
+  private void sample(Frame f) {
+    Sequence<?>[] values = f.stackFrame.getStackFrameValues();
+    if (values == null) {
+      return;
+    }
+    if (values.length > f.seen.length) {
+      f.seen = Arrays.copyOf(f.seen, values.length);
+      f.bytes = Arrays.copyOf(f.bytes, values.length);
+      f.parts = Arrays.copyOf(f.parts, values.length);
+    }
+    boolean changed = false;
+    for (int slot = 0; slot < values.length; slot++) {
+      Sequence<?> v = values[slot];
+      if (v != f.seen[slot]) {
+        release(f.parts[slot]);
+        f.parts[slot] = null;
+        f.seen[slot] = v;
+        long size = v == null ? 0 : measure(v, f, slot);
+        f.total += size - f.bytes[slot];
+        f.bytes[slot] = size;
+        changed = true;
+      }
+    }
+    if (changed) {
+      f.peak = Math.max(f.peak, f.total);
+      if (retained > peakRetained) {
+        peakRetained = retained;
+        peakComponent = f.component.name;
+        peakDepth = depth;
+      }
+    }
+  }
+
+  /** The size of a value that was just bound, charging what is new to the variable */
+  private long measure(Sequence<?> v, Frame f, int slot) {
+    if (v instanceof NodeInfo) {
+      TreeInfo tree = ((NodeInfo) v).getTreeInfo();
+      long size = sizeOf(tree);
+      if (size > 0) {
+        if (charged.put(tree, Boolean.TRUE) == null) {
+          Allocator a = allocatorOf(f, slot);
+          a.bindings++;
+          a.trees++;
+          a.bytes += size;
+          a.largest = Math.max(a.largest, size);
+        }
+        f.parts[slot] = new Object[] { tree };
+        hold(tree, size);
+      }
+      return size;
+    }
+    if (!(v instanceof GroundedValue) || v instanceof Item || v instanceof IntegerRange) {
+      // Atomic values and ranges are small, and lazily evaluated values are not built yet
+      return 0;
+    }
+    GroundedValue<?> sequence = (GroundedValue<?>) v;
+    int length = sequence.getLength();
+    // A sequence that is already bound on the stack came in as a parameter
+    boolean passedOn = held.containsKey(sequence);
+
+    List<TreeInfo> trees = new ArrayList<>();
+    long treeBytes = 0;
+    int sampled = 0;
+    int nodes = 0;
+    int step = Math.max(1, length / SAMPLED_ITEMS);
+    TreeInfo last = null;
+    for (int i = 0; i < length; i += step) {
+      sampled++;
+      Item<?> item = sequence.itemAt(i);
+      if (item instanceof NodeInfo) {
+        nodes++;
+        TreeInfo tree = ((NodeInfo) item).getTreeInfo();
+        if (tree != last && !trees.contains(tree)) {
+          long treeSize = sizeOf(tree);
+          if (treeSize > 0) {
+            trees.add(tree);
+            treeBytes += treeSize;
+          }
+        }
+        last = tree;
+      }
+    }
+    // Every item looked at had a tree of its own, e.g. a sequence of
+    // constructed elements: the ones in between are taken to be the same size
+    long unseenTrees = 0;
+    long unseenBytes = 0;
+    if (sampled < length && nodes == sampled && trees.size() == sampled) {
+      unseenTrees = length - sampled;
+      unseenBytes = treeBytes / sampled * unseenTrees;
+    }
+
+    long ownBytes = (long) length * BYTES_PER_ITEM + unseenBytes;
+    long charge = passedOn ? 0 : ownBytes;
+    long newTrees = passedOn ? 0 : unseenTrees;
+    for (TreeInfo tree : trees) {
+      if (charged.put(tree, Boolean.TRUE) == null) {
+        charge += sizeOf(tree);
+        newTrees++;
+      }
+    }
+    if (charge > 0) {
+      Allocator a = allocatorOf(f, slot);
+      a.bindings++;
+      a.trees += newTrees;
+      a.items += length;
+      a.bytes += charge;
+      a.largest = Math.max(a.largest, charge);
+    }
+
+    Object[] parts = new Object[trees.size() + 1];
+    parts[0] = sequence;
+    hold(sequence, ownBytes);
+    for (int i = 0; i < trees.size(); i++) {
+      parts[i + 1] = trees.get(i);
+      hold(trees.get(i), sizeOf(trees.get(i)));
+    }
+    f.parts[slot] = parts;
+    return ownBytes + treeBytes;
+  }
+
+  private void hold(Object part, long bytes) {
+    Holding h = held.get(part);
+    if (h == null) {
+      h = new Holding(bytes);
+      held.put(part, h);
+      retained += bytes;
+    }
+    h.slots++;
+  }
+
+  private void release(Object[] parts) {
+    if (parts == null) {
+      return;
+    }
+    for (Object part : parts) {
+      Holding h = held.get(part);
+      if (h != null && --h.slots == 0) {
+        held.remove(part);
+        retained -= h.bytes;
+      }
+    }
+  }
+
+  private long sizeOf(TreeInfo tree) {
+    Long size = treeBytes.get(tree);
+    if (size == null) {
+      Item<?> global = controller.getGlobalContextItem();
+      boolean source = controller.getDocumentPool().contains(tree)
+          || (global instanceof NodeInfo && ((NodeInfo) global).getTreeInfo() == tree);
+      size = source || !(tree instanceof TinyTree) ? 0 : ResourceReport.approximateBytes((TinyTree) tree);
+      treeBytes.put(tree, size);
+    }
+    return size;
+  }
+
+  private Component componentOf(InstructionInfo info, XPathContext context) {
+    int id = table.componentIdOf(info, context);
+    if (id >= components.length) {
+      components = Arrays.copyOf(components, Math.max(id + 1, components.length * 2));
+    }
+    Component c = components[id];
+    if (c == null) {
+      c = components[id] = new Component(table.getComponentKind(id) + " " + table.getComponentName(id));
+    }
+    return c;
+  }
+
+  private static Allocator allocatorOf(Frame f, int slot) {
+    Component c = f.component;
+    if (slot >= c.bySlot.length) {
+      c.bySlot = Arrays.copyOf(c.bySlot, Math.max(slot + 1, c.bySlot.length * 2));
+    }
+    Allocator a = c.bySlot[slot];
+    if (a == null) {
+      List<StructuredQName> names = f.stackFrame.getStackFrameMap().getVariableMap();
+      StructuredQName name = slot < names.size() ? names.get(slot) : null;
+      a = c.bySlot[slot] = new Allocator(String.format("$%s in %s", name == null ? "#" + slot : name.getDisplayName(),
+          c.name));
+    }
+    return a;
+  }
+
+  /**
+   * Writes the variables that allocated the most, and the most each template
+   * and function held at once.
+   *
+   * @return a short summary for the debug console
+   */
+  @Override
+  public String writeReport(File reportFile) throws IOException {
+    List<Allocator> allocators = new ArrayList<>();
+    long total = 0;
+    long trees = 0;
+    for (Component c : components) {
+      if (c == null) {
+        continue;
+      }
+      for (Allocator a : c.bySlot) {
+        if (a != null) {
+          allocators.add(a);
+          total += a.bytes;
+          trees += a.trees;
+        }
+      }
+    }
+    Collections.sort(allocators, new Comparator<Allocator>() {
+      @Override
+      public int compare(Allocator a, Allocator b) {
+        return Long.compare(b.bytes, a.bytes);
+      }
+    });
+    List<Component> holders = new ArrayList<>();
+    for (Component c : components) {
+      if (c != null && c.peak > 0) {
+        holders.add(c);
+      }
+    }
+    Collections.sort(holders, new Comparator<Component>() {
+      @Override
+      public int compare(Component a, Component b) {
+        return Long.compare(b.peak, a.peak);
+      }
+    });
+
+    PrintWriter out = new PrintWriter(reportFile, "UTF-8");
+    try {
+      out.println("# Temporary trees and sequences, by the variable that bound them");
+      out.println("bytes\ttrees\titems\tbindings\tlargest\tvariable");
+      for (Allocator a : allocators) {
+        out.println(String.format("%d\t%d\t%d\t%d\t%d\t%s", a.bytes, a.trees, a.items, a.bindings, a.largest, a.name));
+      }
+      out.println();
+      out.println("# The most one call held in its variables at a time");
+      out.println("peak\tcalls\tname");
+      for (Component c : holders) {
+        out.println(String.format("%d\t%d\t%s", c.peak, c.calls, c.name));
+      }
+      out.println();
+      out.println(String.format("# At most %d bytes were held on the stack at once, %d calls deep in %s", peakRetained,
+          peakDepth, peakComponent));
+    } finally {
+      out.close();
+    }
+
+    StringBuilder summary = new StringBuilder();
+    summary.append(String.format("Allocations: %d bytes in %d temporary trees, at most %d bytes held at once%n", total,
+        trees, peakRetained));
+    summary.append("bytes\ttrees\tvariable\n");
+    for (Allocator a : allocators.subList(0, Math.min(10, allocators.size()))) {
+      summary.append(String.format("%d\t%d\t%s%n", a.bytes, a.trees, a.name));
+    }
+    return summary.toString();
+  }
+}
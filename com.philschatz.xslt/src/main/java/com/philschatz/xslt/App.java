@@ -1,13 +1,34 @@
 package com.philschatz.xslt;
 
+import java.util.logging.Logger;
+
+import net.sf.saxon.s9api.SaxonApiException;
+
 public class App {
-    public static void main(String[] args) {
-        if (args.length != 1) {
-            System.err.println("Exactly 1 commandline argument should be provided, the port number to listen on");
+    private static final Logger logger = Logger.getLogger("xslt-debug");
+    private static final int WARM_UP_ITERATIONS = 20;
+
+    public static void main(String[] args) throws SaxonApiException {
+        // Runs the warm-up and exits; used to record the class list for AppCDS
+        if (args.length == 1 && "--warm-up".equals(args[0])) {
+            StylesheetCache stylesheets = new StylesheetCache();
+            logger.info(String.format("Warmed up in %dms", WarmUp.run(stylesheets.getProcessor(), WARM_UP_ITERATIONS)));
+            stylesheets.close();
+            return;
+        }
+        boolean daemon = args.length == 2 && "--daemon".equals(args[1]);
+        if (args.length != 1 && !daemon) {
+            System.err.println("Usage: App <port> [--daemon] | App --warm-up");
+            System.err.println("  --daemon   warm up the XSLT processor before accepting connections");
+            System.err.println("  --warm-up  only warm up, then exit (to record a class list for AppCDS)");
             System.exit(110);
         }
         int port = Integer.parseInt(args[0]);
-        XSLTDebugServer server = new XSLTDebugServer(port);
+        StylesheetCache stylesheets = new StylesheetCache();
+        if (daemon) {
+            logger.info(String.format("Warmed up in %dms", WarmUp.run(stylesheets.getProcessor(), WARM_UP_ITERATIONS)));
+        }
+        XSLTDebugServer server = new XSLTDebugServer(port, stylesheets);
         server.start();
     }
 }
@@ -0,0 +1,60 @@
+package com.philschatz.xslt;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Keeps track of how many characters, lines and columns of output have been
+ * written. Saxon writes to a Writer destination directly, without buffering of
+ * its own, so the position is accurate whenever the trace listener looks at it.
+ *
+ * Written by the transform thread only.
+ */
+public class CountingWriter extends FilterWriter {
+  private long offset;
+  /** 1-based, like the line numbers editors show */
+  private int line = 1;
+  /** 0-based */
+  private int column;
+
+  public CountingWriter(Writer out) {
+    super(out);
+  }
+
+  public long getOffset() { return offset; }
+  public int getLine() { return line; }
+  public int getColumn() { return column; }
+
+  @Override
+  public void write(int c) throws IOException {
+    out.write(c);
+    advance((char) c);
+  }
+
+  @Override
+  public void write(char[] cbuf, int off, int len) throws IOException {
+    out.write(cbuf, off, len);
+    for (int i = off; i < off + len; i++) {
+      advance(cbuf[i]);
+    }
+  }
+
+  @Override
+  public void write(String str, int off, int len) throws IOException {
+    out.write(str, off, len);
+    for (int i = off; i < off + len; i++) {
+      advance(str.charAt(i));
+    }
+  }
+
+  private void advance(char c) {
+    offset++;
+    if (c == '\n') {
+      line++;
+      column = 0;
+    } else {
+      column++;
+    }
+  }
+}
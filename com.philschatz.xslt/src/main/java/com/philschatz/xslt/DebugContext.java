@@ -1,47 +1,59 @@
 package com.philschatz.xslt;
 
-import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-
-import javax.xml.transform.ErrorListener;
-import javax.xml.transform.SourceLocator;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.stream.StreamSource;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
 
 import com.microsoft.java.debug.core.protocol.Events;
-import com.microsoft.java.debug.core.protocol.Types;
 
-import net.sf.saxon.lib.Feature;
-import net.sf.saxon.s9api.MessageListener2;
 import net.sf.saxon.s9api.Processor;
-import net.sf.saxon.s9api.QName;
 import net.sf.saxon.s9api.SaxonApiException;
-import net.sf.saxon.s9api.Serializer;
-import net.sf.saxon.s9api.XdmNode;
-import net.sf.saxon.s9api.Xslt30Transformer;
-import net.sf.saxon.s9api.XsltCompiler;
+import net.sf.saxon.s9api.XdmValue;
 import net.sf.saxon.s9api.XsltExecutable;
 
-public class DebugContext implements Runnable {
+/**
+ * A debug session: one stylesheet, run against one or more inputs at the same
+ * time. Each input is a {@link DebugRun}, shown to the client as a thread.
+ */
+public class DebugContext {
+  private static final Logger logger = Logger.getLogger("xslt-debug");
 
-  private final XSLTDebugTraceListener listener;
   private final Processor processor;
+  private final StylesheetCache stylesheets;
   private final ProtocolServer server;
-  private Xslt30Transformer transformer;
-  private StreamSource source;
-  private Serializer destination;
-
-  private Thread running;
+  private final ExpressionCache expressions;
+  private String xsltPath;
+  private TraceFilter traceFilter = TraceFilter.ALL;
+  private XSLTLaunchArguments launchArguments = new XSLTLaunchArguments();
+  private volatile List<DebugRun> runs = Collections.emptyList();
+  private List<XSLTBreakpoint> breakpoints = new ArrayList<>();
+  private int finishedRuns;
+  // For the time-to-first-breakpoint metric
+  private long launchedAt;
+  private volatile long compileNanos;
+  private boolean stopped;
+  private DocumentPrefetcher prefetcher;
+  private volatile boolean clientSupportsProgress;
+  // Renders the variables of a run that just stopped, before the client asks
+  private final ExecutorService variablesPrefetch =
+      Executors.newSingleThreadExecutor(Threads.daemonThreads("Xslt Variables Prefetch"));
 
   public DebugContext(ProtocolServer server) {
-    this.listener = new XSLTDebugTraceListener(this);
+    this(server, new StylesheetCache());
+  }
+
+  public DebugContext(ProtocolServer server, StylesheetCache stylesheets) {
     this.server = server;
-    processor = new Processor(false);
-    processor.setConfigurationProperty(Feature.EAGER_EVALUATION, true);
-    processor.setConfigurationProperty(Feature.OPTIMIZATION_LEVEL, 0); // disable variable inlining
-    processor.setConfigurationProperty(Feature.LINE_NUMBERING, true);
-    // processor.setConfigurationProperty(Feature.COMPILE_WITH_TRACING, true);
-    processor.setConfigurationProperty(Feature.TRACE_LISTENER, listener);
+    this.stylesheets = stylesheets;
+    // Shared with the other sessions, so the trace listener is set on the
+    // transformer rather than on the configuration
+    processor = stylesheets.getProcessor();
+    expressions = new ExpressionCache(processor);
 
     System.setProperty("xspec.coverage.xml", "./xspec-coverage.xml");
     System.setProperty("xspec.xspecfile", "./xspec-filename.xspec");
@@ -53,111 +65,219 @@ public class DebugContext implements Runnable {
     return server;
   }
 
-  public void createTransformer(String xsltPath, String sourcePath, String destinationPath) {
-    source = new StreamSource(new File(sourcePath));
-    destination = processor.newSerializer(new File(destinationPath));
+  public Processor getProcessor() {
+    return processor;
+  }
+
+  public XSLTLaunchArguments getLaunchArguments() {
+    return launchArguments;
+  }
+
+  /**
+   * Called by LAUNCH, which is where the time-to-first-breakpoint is measured
+   * from. The runs of an earlier launch, which have all finished, are
+   * forgotten, so the new ones get the stylesheet as it is now.
+   */
+  public synchronized void setLaunchArguments(XSLTLaunchArguments launchArguments) {
+    this.launchArguments = launchArguments;
+    this.launchedAt = System.nanoTime();
+    runs = Collections.emptyList();
+    finishedRuns = 0;
+    compileNanos = 0;
+    stopped = false;
+    prefetcher = null;
+  }
+
+  /** From INITIALIZE; progress events are only sent to clients that asked for them */
+  public void setClientSupportsProgress(boolean clientSupportsProgress) {
+    this.clientSupportsProgress = clientSupportsProgress;
+  }
+
+  public boolean isClientSupportsProgress() {
+    return clientSupportsProgress;
+  }
+
+  public TraceFilter getTraceFilter() {
+    return traceFilter;
+  }
+
+  public synchronized String getXsltPath() {
+    return xsltPath;
+  }
+
+  /** True from LAUNCH until every run of that launch has finished */
+  public synchronized boolean hasActiveRuns() {
+    return finishedRuns < runs.size();
+  }
+
+  /**
+   * Remembers what to run. The stylesheet is compiled when the runs start, once
+   * the breakpoints are known, because only the modules with breakpoints (or
+   * the ones in the "traceModules" launch option) are instrumented. Every call
+   * adds another input, run concurrently against the same compiled stylesheet.
+   */
+  public synchronized DebugRun createTransformer(String xsltPath, String sourcePath, String destinationPath) {
+    this.xsltPath = xsltPath;
+    List<DebugRun> all = new ArrayList<>(runs);
+    DebugRun run = new DebugRun(this, all.size() + 1, sourcePath, destinationPath);
+    run.setBreakpoints(breakpoints);
+    all.add(run);
+    runs = Collections.unmodifiableList(all);
+    return run;
+  }
 
-    XsltCompiler c = processor.newXsltCompiler();
+  /** All runs share one compile; the StylesheetCache hands every run the same executable */
+  XsltExecutable getExecutable() throws SaxonApiException {
+    long start = System.nanoTime();
     try {
-      XsltExecutable ex = c.compile(new StreamSource(new File(xsltPath)));
-      transformer = ex.load30();
-      transformer.setErrorListener(new ErrorListener() {
-        @Override
-        public void warning(TransformerException exception) throws TransformerException {
-          SourceLocator locator = exception.getLocator();
-          Events.OutputEvent evt;
-          if (locator != null) {
-            evt = Events.OutputEvent.createStderrOutputWithSource(exception.getMessage(),
-                new Types.Source(locator.getSystemId(), 0), locator.getLineNumber());
-          } else {
-            evt = Events.OutputEvent.createStderrOutput(exception.getMessage());
-          }
-          getProtocolServer().sendEvent(evt);
-        }
-
-        @Override
-        public void fatalError(TransformerException exception) throws TransformerException {
-          SourceLocator locator = exception.getLocator();
-          Events.OutputEvent evt;
-          if (locator != null) {
-            evt = Events.OutputEvent.createStderrOutputWithSource(exception.getMessage(),
-                new Types.Source(locator.getSystemId(), 0), locator.getLineNumber());
-          } else {
-            evt = Events.OutputEvent.createStderrOutput(exception.getMessage());
-          }
-          getProtocolServer().sendEvent(evt);
-        }
-
-        @Override
-        public void error(TransformerException exception) throws TransformerException {
-          SourceLocator locator = exception.getLocator();
-          Events.OutputEvent evt;
-          if (locator != null) {
-            evt = Events.OutputEvent.createStderrOutputWithSource(exception.getMessage(),
-                new Types.Source(locator.getSystemId(), 0), locator.getLineNumber());
-          } else {
-            evt = Events.OutputEvent.createStderrOutput(exception.getMessage());
-          }
-          getProtocolServer().sendEvent(evt);
-        }
-      });
-      transformer.setMessageListener(new MessageListener2() {
-        @Override
-        public void message(XdmNode content, QName errorCode, boolean terminate, SourceLocator locator) {
-          // String msg = String.format("%s:(%d:%d) %s", locator.getSystemId(),
-          // locator.getLineNumber(), locator.getColumnNumber(),
-          // content.getStringValue());
-          String msg = content.getStringValue() + '\n';
-          getProtocolServer().sendEvent(Events.OutputEvent.createStdoutOutputWithSource(msg,
-              new Types.Source(locator.getSystemId(), 0), locator.getLineNumber()));
-        }
-      });
-    } catch (SaxonApiException e) {
-      e.printStackTrace();
+      return stylesheets.get(xsltPath, traceFilter);
+    } finally {
+      compileNanos = Math.max(compileNanos, System.nanoTime() - start);
     }
   }
 
-  public void addBreakpoints(List<XSLTBreakpoint> breakpoints) {
-    listener.addBreakpoints(breakpoints);
+  /**
+   * With the "prefetch" launch option, starts parsing the documents the
+   * stylesheet loads by a literal URI. Done once, by the first run that gets
+   * the compiled stylesheet, and shared by all runs.
+   *
+   * @return null unless the option is set
+   */
+  synchronized DocumentPrefetcher getDocumentPrefetcher(XsltExecutable ex) {
+    if (prefetcher == null && launchArguments.prefetch) {
+      prefetcher = DocumentPrefetcher.start(processor, ex);
+      String msg = String.format("Prefetching %d documents\n", prefetcher.getUris().size());
+      server.sendEvent(Events.OutputEvent.createConsoleOutput(msg));
+    }
+    return prefetcher;
   }
 
-  public List<StackFrame> getStackFrames() {
-    return listener.getStackFrames();
+  /** Called by the transform thread of a run as it stops; see {@link PauseSnapshot#prefetch} */
+  void prefetchVariables(PauseSnapshot snapshot) {
+    try {
+      snapshot.prefetch(variablesPrefetch);
+    } catch (RejectedExecutionException e) {
+      // The session is over
+    }
+  }
+
+  /** Reports how long it took from LAUNCH to the first time any run stopped */
+  synchronized void stoppedAtBreakpoint() {
+    if (stopped || launchedAt == 0) {
+      return;
+    }
+    stopped = true;
+    String msg = String.format("First breakpoint hit %dms after launch (waited %dms for the stylesheet to compile)",
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - launchedAt), TimeUnit.NANOSECONDS.toMillis(compileNanos));
+    logger.info(msg);
+    server.sendEvent(Events.OutputEvent.createConsoleOutput(msg + "\n"));
+  }
+
+  public List<DebugRun> getRuns() {
+    return runs;
+  }
+
+  /** The run with the given DAP thread id, or the first one */
+  public DebugRun getRun(long threadId) {
+    List<DebugRun> all = runs;
+    for (DebugRun run : all) {
+      if (run.getThreadId() == threadId) {
+        return run;
+      }
+    }
+    return all.isEmpty() ? null : all.get(0);
+  }
+
+  /**
+   * Replaces the breakpoints of one file, like SETBREAKPOINTS asks. The file
+   * can be a stylesheet module or a source document; a breakpoint on a line of
+   * a source document stops when a node from that line becomes the current
+   * item.
+   */
+  public synchronized void setBreakpoints(String path, List<XSLTBreakpoint> breakpoints) {
+    List<XSLTBreakpoint> all = new ArrayList<>();
+    for (XSLTBreakpoint b : this.breakpoints) {
+      if (!b.path.equals(path)) {
+        all.add(b);
+      }
+    }
+    all.addAll(breakpoints);
+    this.breakpoints = all;
+    for (DebugRun run : runs) {
+      run.setBreakpoints(all);
+    }
+  }
+
+  /**
+   * The snapshot of the paused run that owns the given frame or variable id.
+   * Ids are unique across runs, so at most one snapshot knows the id. If none
+   * does (the client may send no frameId at all), the first paused run is used.
+   */
+  public PauseSnapshot getSnapshot(long id) {
+    PauseSnapshot fallback = PauseSnapshot.EMPTY;
+    for (DebugRun run : runs) {
+      PauseSnapshot snapshot = run.getSnapshot();
+      if (snapshot.variablesPool.containsID(id)) {
+        return snapshot;
+      }
+      if (fallback.frames.isEmpty()) {
+        fallback = snapshot;
+      }
+    }
+    return fallback;
+  }
+
+  /** The thread id of the paused run that owns the given frame or variable id, or 0 */
+  public long getThreadOf(long id) {
+    for (DebugRun run : runs) {
+      if (run.getSnapshot().variablesPool.containsID(id)) {
+        return run.getThreadId();
+      }
+    }
+    return 0;
   }
 
   public Variable getVariableById(long id) {
-    return listener.variablesPool.getById(id);
+    return getSnapshot(id).variablesPool.getById(id);
   }
 
-  public void unpause() {
-    listener.unpause();
+  /**
+   * Evaluates an XPath expression against a frame of a paused transform. The
+   * result is registered in the variables pool so it can be expanded like any
+   * other variable.
+   */
+  public Variable evaluate(String expression, int frameId) throws SaxonApiException {
+    PauseSnapshot snapshot = getSnapshot(frameId);
+    StackFrame frame = snapshot.getFrame(frameId);
+    if (frame == null) {
+      throw new SaxonApiException("Expressions can only be evaluated while the transform is paused");
+    }
+    XdmValue result = expressions.evaluate(expression, frame);
+    return new Variable(expression, result.getUnderlyingValue(), snapshot.variablesPool);
   }
 
   public void startRunning() {
-    if (this.running == null) {
-      this.running = new Thread(this, "Xslt Debug Process");
-      this.running.start();
+    synchronized (this) {
+      traceFilter = TraceFilter.create(launchArguments, breakpoints);
+    }
+    for (DebugRun run : runs) {
+      run.startRunning();
     }
   }
 
   public void stop() {
-    this.listener.unpause();
-    if (this.running != null) {
-      this.running.stop();
+    for (DebugRun run : runs) {
+      run.stop();
     }
+    variablesPrefetch.shutdownNow();
   }
 
-  @Override
-  public void run() {
-    try {
-      transformer.transform(source, destination);
-    } catch (SaxonApiException e) {
-      System.out.println(e.getMessage());
-      System.out.println(e.getLineNumber());
-      e.printStackTrace();
-      server.sendEvent(new Events.StoppedEvent(e.getLocalizedMessage(), 1));
-    } finally {
-      this.running = null;
+  /** The session ends when the last run does, whether it failed or not */
+  synchronized void runFinished(DebugRun run) {
+    server.sendEvent(new Events.ThreadEvent("exited", run.getThreadId()));
+    finishedRuns++;
+    if (finishedRuns == runs.size()) {
+      server.sendEvent(new Events.TerminatedEvent(false));
     }
   }
-}
\ No newline at end of file
+}
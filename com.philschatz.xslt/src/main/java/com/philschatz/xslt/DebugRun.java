@@ -0,0 +1,327 @@
+package com.philschatz.xslt;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import javax.xml.transform.ErrorListener;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.SourceLocator;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.stream.StreamSource;
+
+import com.microsoft.java.debug.core.protocol.Events;
+import com.microsoft.java.debug.core.protocol.Types;
+
+import net.sf.saxon.s9api.MessageListener2;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.Serializer;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.Xslt30Transformer;
+import net.sf.saxon.s9api.XsltExecutable;
+import net.sf.saxon.trans.XPathException;
+
+/**
+ * One transform of one input document. Every run is shown to the client as a
+ * thread of its own, with its own stack, pause state and variables.
+ */
+public class DebugRun implements Runnable {
+
+  private final DebugContext context;
+  private final int threadId;
+  private final XSLTDebugTraceListener listener;
+  private final StreamSource source;
+  private final String destinationPath;
+  private Xslt30Transformer transformer;
+  private Serializer destination;
+  private Writer writer;
+  private CountingWriter output;
+  private volatile OutputPreview preview;
+  private volatile ProvenanceIndex provenanceIndex;
+  private volatile ResourceReport resources;
+  private volatile RunProgress progress;
+  private ResultDocumentWriter resultDocuments;
+  // Set once the error listener has shown the error that ends the run
+  private volatile boolean fatalErrorReported;
+
+  private Thread running;
+
+  DebugRun(DebugContext context, int threadId, String sourcePath, String destinationPath) {
+    this.context = context;
+    this.threadId = threadId;
+    this.source = new StreamSource(new File(sourcePath));
+    this.destinationPath = destinationPath;
+    this.listener = new XSLTDebugTraceListener(this);
+  }
+
+  public DebugContext getContext() {
+    return context;
+  }
+
+  public ProtocolServer getProtocolServer() {
+    return context.getProtocolServer();
+  }
+
+  public XSLTLaunchArguments getLaunchArguments() {
+    return context.getLaunchArguments();
+  }
+
+  public TraceFilter getTraceFilter() {
+    return context.getTraceFilter();
+  }
+
+  public int getThreadId() {
+    return threadId;
+  }
+
+  public String getName() {
+    return new File(source.getSystemId()).getName();
+  }
+
+  /** The URI of the input document */
+  public String getSourceSystemId() {
+    return source.getSystemId();
+  }
+
+  /**
+   * Reports produced by the analysis modes are written next to the destination
+   * file, e.g. out.xml.profile.txt
+   */
+  public File getReportFile(String suffix) {
+    return new File(destinationPath + suffix);
+  }
+
+  private void loadTransformer() throws SaxonApiException {
+    XsltExecutable ex = context.getExecutable();
+    destination = createDestination(ex, destinationPath);
+    transformer = ex.load30();
+    transformer.setTraceListener(listener);
+    DocumentPrefetcher prefetcher = context.getDocumentPrefetcher(ex);
+    if (prefetcher != null) {
+      transformer.setURIResolver(prefetcher);
+    }
+    XSLTLaunchArguments options = context.getLaunchArguments();
+    resources = options.resources ? new ResourceReport(context.getProcessor()) : null;
+    resultDocuments = options.resultDocumentThreads > 0 ? new ResultDocumentWriter(context.getProcessor(),
+        options.resultDocumentThreads, options.resultDocumentBufferBytes, resources) : null;
+    if (resultDocuments != null) {
+      transformer.setResultDocumentHandler(resultDocuments.newResultDocumentHandler());
+    } else if (resources != null) {
+      transformer.setResultDocumentHandler(resources.newResultDocumentHandler());
+    }
+    transformer.setErrorListener(new ErrorListener() {
+      @Override
+      public void warning(TransformerException exception) throws TransformerException {
+        SourceLocator locator = exception.getLocator();
+        Events.OutputEvent evt;
+        if (locator != null) {
+          evt = Events.OutputEvent.createStderrOutputWithSource(exception.getMessage(),
+              new Types.Source(locator.getSystemId(), 0), locator.getLineNumber());
+        } else {
+          evt = Events.OutputEvent.createStderrOutput(exception.getMessage());
+        }
+        getProtocolServer().sendEvent(evt);
+      }
+
+      @Override
+      public void fatalError(TransformerException exception) throws TransformerException {
+        fatalErrorReported = true;
+        SourceLocator locator = exception.getLocator();
+        Events.OutputEvent evt;
+        if (locator != null) {
+          evt = Events.OutputEvent.createStderrOutputWithSource(exception.getMessage(),
+              new Types.Source(locator.getSystemId(), 0), locator.getLineNumber());
+        } else {
+          evt = Events.OutputEvent.createStderrOutput(exception.getMessage());
+        }
+        getProtocolServer().sendEvent(evt);
+      }
+
+      @Override
+      public void error(TransformerException exception) throws TransformerException {
+        SourceLocator locator = exception.getLocator();
+        Events.OutputEvent evt;
+        if (locator != null) {
+          evt = Events.OutputEvent.createStderrOutputWithSource(exception.getMessage(),
+              new Types.Source(locator.getSystemId(), 0), locator.getLineNumber());
+        } else {
+          evt = Events.OutputEvent.createStderrOutput(exception.getMessage());
+        }
+        getProtocolServer().sendEvent(evt);
+      }
+    });
+    transformer.setMessageListener(new MessageListener2() {
+      @Override
+      public void message(XdmNode content, QName errorCode, boolean terminate, SourceLocator locator) {
+        // String msg = String.format("%s:(%d:%d) %s", locator.getSystemId(),
+        // locator.getLineNumber(), locator.getColumnNumber(),
+        // content.getStringValue());
+        String msg = content.getStringValue() + '\n';
+        getProtocolServer().sendEvent(Events.OutputEvent.createStdoutOutputWithSource(msg,
+            new Types.Source(locator.getSystemId(), 0), locator.getLineNumber()));
+      }
+    });
+  }
+
+  private Serializer createDestination(XsltExecutable ex, String destinationPath) throws SaxonApiException {
+    XSLTLaunchArguments options = context.getLaunchArguments();
+    writer = null;
+    output = null;
+    preview = null;
+    if (!options.provenance && !options.preview) {
+      return context.getProcessor().newSerializer(new File(destinationPath));
+    }
+    // Saxon does not buffer a Writer destination, so counting what reaches it
+    // tells the trace listener exactly where in the output each instruction is,
+    // and the preview always has everything written so far
+    String encoding = ex.getUnderlyingCompiledStylesheet().getDeclaredSerializationProperties()
+        .getProperty(OutputKeys.ENCODING);
+    try {
+      writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(destinationPath),
+          encoding == null ? "UTF-8" : encoding));
+    } catch (IOException e) {
+      throw new SaxonApiException(e);
+    }
+    if (options.preview) {
+      writer = preview = new OutputPreview(writer, options.previewBufferChars);
+    }
+    if (options.provenance) {
+      writer = output = new CountingWriter(writer);
+    }
+    return context.getProcessor().newSerializer(writer);
+  }
+
+  /** The recent output when the "preview" launch option is set, otherwise null */
+  public OutputPreview getPreview() {
+    return preview;
+  }
+
+  /** The destination writer when output positions are being tracked, otherwise null */
+  public CountingWriter getOutput() {
+    return output;
+  }
+
+  /** Null unless the client supports progress events and they are not turned off */
+  public RunProgress getProgress() {
+    return progress;
+  }
+
+  /** Null unless the "resources" launch option is set */
+  public ResourceReport getResources() {
+    return resources;
+  }
+
+  public ProvenanceIndex getProvenanceIndex() {
+    return provenanceIndex;
+  }
+
+  void setProvenanceIndex(ProvenanceIndex provenanceIndex) {
+    this.provenanceIndex = provenanceIndex;
+  }
+
+  public void setBreakpoints(List<XSLTBreakpoint> breakpoints) {
+    listener.setBreakpoints(breakpoints);
+  }
+
+  public boolean isPaused() {
+    return listener.isPaused();
+  }
+
+  /** Lists the resources of the run on its transform thread, which has to be paused */
+  public XSLTResponses.ResourcesResponseBody collectResources() throws XPathException {
+    return listener.runWhilePaused(new Callable<XSLTResponses.ResourcesResponseBody>() {
+      @Override
+      public XSLTResponses.ResourcesResponseBody call() {
+        return resources.collect();
+      }
+    });
+  }
+
+  public PauseSnapshot getSnapshot() {
+    return listener.getSnapshot();
+  }
+
+  public List<StackFrame> getStackFrames() {
+    return listener.getStackFrames();
+  }
+
+  public void unpause() {
+    listener.unpause();
+  }
+
+  public void startRunning() {
+    if (this.running == null) {
+      this.running = new Thread(this, "Xslt Debug Process " + threadId);
+      getProtocolServer().sendEvent(new Events.ThreadEvent("started", threadId));
+      this.running.start();
+    }
+  }
+
+  public void stop() {
+    this.listener.unpause();
+    if (this.running != null) {
+      this.running.stop();
+    }
+  }
+
+  @Override
+  public void run() {
+    try {
+      loadTransformer();
+      long progressInterval = context.getLaunchArguments().progressIntervalMillis;
+      if (context.isClientSupportsProgress() && progressInterval > 0) {
+        progress = new RunProgress(getProtocolServer(), this);
+        progress.start(progressInterval);
+      }
+      if (preview != null && context.getLaunchArguments().previewIntervalMillis > 0) {
+        preview.startEvents(getProtocolServer(), threadId, context.getLaunchArguments().previewIntervalMillis);
+      }
+      transformer.transform(source, destination);
+    } catch (SaxonApiException e) {
+      System.out.println(e.getMessage());
+      System.out.println(e.getLineNumber());
+      e.printStackTrace();
+      // The run is over, so the error is output rather than a reason to stop
+      if (!fatalErrorReported) {
+        Events.OutputEvent evt;
+        if (e.getSystemId() != null) {
+          evt = Events.OutputEvent.createStderrOutputWithSource(e.getLocalizedMessage() + '\n',
+              new Types.Source(e.getSystemId(), 0), e.getLineNumber());
+        } else {
+          evt = Events.OutputEvent.createStderrOutput(e.getLocalizedMessage() + '\n');
+        }
+        getProtocolServer().sendEvent(evt);
+      }
+    } finally {
+      if (writer != null) {
+        try {
+          writer.close();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+      if (resultDocuments != null) {
+        IOException failed = resultDocuments.finish();
+        if (failed != null) {
+          getProtocolServer().sendEvent(Events.OutputEvent.createStderrOutput(failed.getMessage() + '\n'));
+        } else {
+          getProtocolServer().sendEvent(Events.OutputEvent.createConsoleOutput(resultDocuments.getSummary()));
+        }
+      }
+      if (preview != null) {
+        preview.stopEvents(getProtocolServer(), threadId);
+      }
+      if (progress != null) {
+        progress.stop();
+      }
+      this.running = null;
+      context.runFinished(this);
+    }
+  }
+}
@@ -0,0 +1,175 @@
+package com.philschatz.xslt;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.URIResolver;
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.PreparedStylesheet;
+import net.sf.saxon.expr.Component;
+import net.sf.saxon.expr.Expression;
+import net.sf.saxon.expr.Literal;
+import net.sf.saxon.expr.Operand;
+import net.sf.saxon.expr.SystemFunctionCall;
+import net.sf.saxon.expr.instruct.Actor;
+import net.sf.saxon.expr.instruct.GlobalVariable;
+import net.sf.saxon.expr.instruct.TemplateRule;
+import net.sf.saxon.functions.Doc;
+import net.sf.saxon.functions.DocumentFn;
+import net.sf.saxon.om.GroundedValue;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.s9api.DocumentBuilder;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.XsltExecutable;
+import net.sf.saxon.trans.Mode;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.trans.rules.Rule;
+import net.sf.saxon.trans.rules.RuleManager;
+import net.sf.saxon.value.StringValue;
+
+/**
+ * Parses the documents a stylesheet loads with a literal URI, e.g.
+ * doc('lookup.xml') or document('codes.xml'), on a few worker threads as soon
+ * as the stylesheet is compiled. Set as the URIResolver of each run, it hands
+ * Saxon the parsed tree when doc() asks for it, waiting only if that one
+ * document is still being parsed. Saxon then adds it to the run's document
+ * pool as usual. Any other URI, or a document that failed to parse, is left to
+ * Saxon.
+ *
+ * The trees are built with the stylesheet's xsl:strip-space rules, so Saxon
+ * does not need to wrap them, and are shared read-only by every run of the
+ * session.
+ */
+public class DocumentPrefetcher implements URIResolver {
+  private static final Logger logger = Logger.getLogger("xslt-debug");
+
+  private final Map<String, Future<NodeInfo>> documents;
+
+  private DocumentPrefetcher(Map<String, Future<NodeInfo>> documents) {
+    this.documents = documents;
+  }
+
+  /** Starts parsing every document the stylesheet names with a literal URI */
+  public static DocumentPrefetcher start(Processor processor, XsltExecutable ex) {
+    Set<String> uris = findDocumentUris(ex.getUnderlyingCompiledStylesheet());
+    Map<String, Future<NodeInfo>> documents = new LinkedHashMap<>();
+    if (uris.isEmpty()) {
+      return new DocumentPrefetcher(documents);
+    }
+    final DocumentBuilder builder = processor.newDocumentBuilder();
+    builder.setLineNumbering(true);
+    builder.setWhitespaceStrippingPolicy(ex.getWhitespaceStrippingPolicy());
+    int threads = Math.min(uris.size(), Runtime.getRuntime().availableProcessors());
+    ExecutorService parsers = Executors.newFixedThreadPool(threads, Threads.daemonThreads("Xslt Document Prefetch"));
+    for (final String uri : uris) {
+      documents.put(uri, parsers.submit(new Callable<NodeInfo>() {
+        @Override
+        public NodeInfo call() throws Exception {
+          long start = System.nanoTime();
+          NodeInfo document = builder.build(new StreamSource(uri)).getUnderlyingNode();
+          logger.info(String.format("Prefetched %s in %dms", uri,
+              TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+          return document;
+        }
+      }));
+    }
+    // The threads go away once the last document is parsed
+    parsers.shutdown();
+    return new DocumentPrefetcher(documents);
+  }
+
+  public Set<String> getUris() {
+    return Collections.unmodifiableSet(documents.keySet());
+  }
+
+  @Override
+  public Source resolve(String href, String base) {
+    Future<NodeInfo> document = documents.get(absolute(href, base));
+    if (document == null) {
+      return null;
+    }
+    try {
+      return document.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (ExecutionException e) {
+      // Let Saxon load it again, so the error is reported where doc() is called
+      logger.log(Level.FINE, String.format("Prefetching %s failed", href), e.getCause());
+      return null;
+    }
+  }
+
+  private static String absolute(String href, String base) {
+    try {
+      return base == null ? new URI(href).toString() : new URI(base).resolve(href).toString();
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  /** Literal arguments of doc() and document() in every template, function and global variable */
+  static Set<String> findDocumentUris(PreparedStylesheet stylesheet) {
+    final Set<String> uris = new LinkedHashSet<>();
+    for (Component component : stylesheet.getTopLevelPackage().getComponentIndex().values()) {
+      Actor actor = component.getActor();
+      if (actor instanceof GlobalVariable) {
+        collect(((GlobalVariable) actor).getSelectExpression(), uris);
+      } else if (!(actor instanceof Mode)) {
+        collect(actor.getBody(), uris);
+      }
+    }
+    RuleManager rules = stylesheet.getTopLevelPackage().getRuleManager();
+    Mode.RuleAction action = new Mode.RuleAction() {
+      @Override
+      public void processRule(Rule rule) {
+        if (rule.getAction() instanceof TemplateRule) {
+          collect(((TemplateRule) rule.getAction()).getBody(), uris);
+        }
+      }
+    };
+    try {
+      rules.getUnnamedMode().processRules(action);
+      for (Mode mode : rules.getAllNamedModes()) {
+        mode.processRules(action);
+      }
+    } catch (XPathException e) {
+      logger.log(Level.WARNING, String.format("Cannot list the template rules: %s", e.toString()), e);
+    }
+    uris.remove(null);
+    return uris;
+  }
+
+  private static void collect(Expression e, Set<String> uris) {
+    if (e == null) {
+      return;
+    }
+    if (e instanceof SystemFunctionCall) {
+      SystemFunctionCall call = (SystemFunctionCall) e;
+      Object f = call.getTargetFunction();
+      if ((f instanceof Doc || f instanceof DocumentFn) && call.getArity() == 1 && call.getArg(0) instanceof Literal) {
+        GroundedValue<?> href = ((Literal) call.getArg(0)).getValue();
+        if (href instanceof StringValue) {
+          uris.add(absolute(((StringValue) href).getStringValue(), call.getStaticBaseURIString()));
+        }
+      }
+    }
+    for (Operand o : e.operands()) {
+      collect(o.getChildExpression(), uris);
+    }
+  }
+}
@@ -0,0 +1,142 @@
+package com.philschatz.xslt;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import net.sf.saxon.om.GroundedValue;
+import net.sf.saxon.om.NamespaceResolver;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.SaxonApiUncheckedException;
+import net.sf.saxon.s9api.XPathCompiler;
+import net.sf.saxon.s9api.XPathExecutable;
+import net.sf.saxon.s9api.XPathSelector;
+import net.sf.saxon.s9api.XdmItem;
+import net.sf.saxon.s9api.XdmValue;
+
+/**
+ * Compiles and evaluates XPath expressions (hovers, watches, the debug console)
+ * against a paused stack frame.
+ *
+ * Watch expressions are re-evaluated at every stop, so the compiled
+ * {@link XPathExecutable}s are kept in a small LRU cache keyed by the
+ * expression, the in-scope namespaces and the names of the variables the frame
+ * binds (the declared variables are part of the static context too).
+ */
+public class ExpressionCache {
+  private static final int MAX_ENTRIES = 256;
+
+  private final Processor processor;
+  private final Map<Key, XPathExecutable> cache = new LinkedHashMap<Key, XPathExecutable>(16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Key, XPathExecutable> eldest) {
+      return size() > MAX_ENTRIES;
+    }
+  };
+
+  public ExpressionCache(Processor processor) {
+    this.processor = processor;
+  }
+
+  public XdmValue evaluate(String expression, StackFrame frame) throws SaxonApiException {
+    // Slots are listed outermost first so an inner binding shadows an outer one
+    Map<String, GroundedValue> variables = new LinkedHashMap<>();
+    for (Variable v : frame.variables) {
+      if (!StackFrame.CONTEXT_ITEM.equals(v.getKey())) {
+        variables.put(v.getKey(), v.getGroundedValue());
+      }
+    }
+
+    XPathSelector selector = compile(expression, frame.namespaces, variables.keySet()).load();
+    if (frame.contextItem != null) {
+      selector.setContextItem((XdmItem) XdmValue.wrap(frame.contextItem));
+    }
+    for (Map.Entry<String, GroundedValue> v : variables.entrySet()) {
+      selector.setVariable(QName.fromClarkName(v.getKey()), XdmValue.wrap(v.getValue()));
+    }
+    // Read the result item by item (which is all evaluate() does) so a cancel
+    // request can stop an expression that returns a huge sequence
+    List<XdmItem> items = new ArrayList<>();
+    try {
+      for (XdmItem item : selector) {
+        RequestCancellation.check();
+        items.add(item);
+      }
+    } catch (SaxonApiUncheckedException e) {
+      throw new SaxonApiException(e.getCause());
+    }
+    // A single item stays an item, e.g. so a node can be expanded
+    return items.size() == 1 ? items.get(0) : new XdmValue(items);
+  }
+
+  private XPathExecutable compile(String expression, NamespaceResolver namespaces, Collection<String> variables)
+      throws SaxonApiException {
+    Map<String, String> bindings = new TreeMap<>();
+    if (namespaces != null) {
+      Iterator<String> prefixes = namespaces.iteratePrefixes();
+      while (prefixes.hasNext()) {
+        String prefix = prefixes.next();
+        // The XPath default element namespace is not the stylesheet's default namespace
+        if (prefix.length() > 0) {
+          bindings.put(prefix, namespaces.getURIForPrefix(prefix, false));
+        }
+      }
+    }
+    List<String> names = new ArrayList<>(variables);
+
+    Key key = new Key(expression, bindings, names);
+    synchronized (cache) {
+      XPathExecutable cached = cache.get(key);
+      if (cached != null) {
+        return cached;
+      }
+    }
+
+    XPathCompiler compiler = processor.newXPathCompiler();
+    for (Map.Entry<String, String> binding : bindings.entrySet()) {
+      compiler.declareNamespace(binding.getKey(), binding.getValue());
+    }
+    for (String name : names) {
+      compiler.declareVariable(QName.fromClarkName(name));
+    }
+    XPathExecutable compiled = compiler.compile(expression);
+    synchronized (cache) {
+      cache.put(key, compiled);
+    }
+    return compiled;
+  }
+
+  private static class Key {
+    private final String expression;
+    private final Map<String, String> namespaces;
+    private final List<String> variables;
+
+    Key(String expression, Map<String, String> namespaces, List<String> variables) {
+      this.expression = expression;
+      this.namespaces = namespaces;
+      this.variables = variables;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key k = (Key) o;
+      return expression.equals(k.expression) && namespaces.equals(k.namespaces) && variables.equals(k.variables);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * (31 * expression.hashCode() + namespaces.hashCode()) + variables.hashCode();
+    }
+  }
+}
@@ -13,7 +13,9 @@ public class ExtraTypesVariable extends Types.Variable {
   // endLine?: number;
   /** Optional end column of the range covered by this scope. */
   // endColumn?: number;
-    
+  /** Optional hint for how to present the variable, e.g. lazily. */
+  public PresentationHint presentationHint;
+
   ExtraTypesVariable(String name, String val, String type, int rf, SourceLocation source) {
     super(name, val, type, rf, null);
     if (source != null) {
@@ -23,6 +25,18 @@ public class ExtraTypesVariable extends Types.Variable {
     }
   }
 
+  /** The presentationHint of a variable; only the fields this adapter sets */
+  public static class PresentationHint {
+    /** The value is only fetched when the user asks for it, with a VARIABLES request for its reference */
+    public static final PresentationHint LAZY = new PresentationHint(true);
+
+    public final Boolean lazy;
+
+    PresentationHint(Boolean lazy) {
+      this.lazy = lazy;
+    }
+  }
+
   public static class SourceLocation {
     public final String path;
     public final int line;
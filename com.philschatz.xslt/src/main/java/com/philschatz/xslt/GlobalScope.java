@@ -0,0 +1,29 @@
+package com.philschatz.xslt;
+
+import java.util.List;
+
+/**
+ * The "Global" scope of a paused run: the global variables and parameters of
+ * the stylesheet. The ones the run has already evaluated are read from the
+ * controller's bindery; the others are shown as {@link UnevaluatedGlobal}s, so
+ * opening the scope never evaluates anything.
+ */
+public class GlobalScope extends Variable {
+  public final List<Variable> variables;
+
+  GlobalScope(ObjectPool<ObjectPool.Unit, Variable> pool, final List<Variable> variables) {
+    super("I_AM_A_SCOPE_NOT_A_VARIABLE", null, pool);
+    this.variables = variables;
+  }
+
+  @Override
+  public List<Variable> getChildren() {
+    return variables;
+  }
+
+  @Override
+  public List<Variable> getChildren(int start, int count) {
+    int end = count > 0 ? Math.min(variables.size(), start + count) : variables.size();
+    return variables.subList(Math.min(start, end), end);
+  }
+}
@@ -0,0 +1,99 @@
+package com.philschatz.xslt;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compares two reports written by the "counts" profile and lists the templates,
+ * functions and documents whose counts grew by more than a threshold. Exits
+ * with status 1 if anything grew, so it can gate a CI build:
+ *
+ * <pre>
+ * java -cp xslt-debug.jar com.philschatz.xslt.InstructionCountDiff baseline.counts.tsv out.xml.counts.tsv [percent]
+ * </pre>
+ */
+public class InstructionCountDiff {
+  private static final double DEFAULT_THRESHOLD_PERCENT = 5;
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.err.println("Usage: InstructionCountDiff <baseline.counts.tsv> <current.counts.tsv> [threshold percent]");
+      System.exit(2);
+    }
+    double threshold = args.length > 2 ? Double.parseDouble(args[2]) : DEFAULT_THRESHOLD_PERCENT;
+    System.exit(diff(args[0], args[1], threshold, System.out));
+  }
+
+  /**
+   * Prints what is new, what grew and what is gone.
+   *
+   * @return the exit status: 1 if anything grew by more than the threshold
+   */
+  static int diff(String baselinePath, String currentPath, double threshold, PrintStream out) throws IOException {
+    Map<String, long[]> baseline = read(baselinePath);
+    Map<String, long[]> current = read(currentPath);
+
+    int grew = 0;
+    for (Map.Entry<String, long[]> e : current.entrySet()) {
+      long[] before = baseline.get(e.getKey());
+      long[] after = e.getValue();
+      if (before == null) {
+        out.println(String.format("new\t%d\t%d\t%s", after[0], after[1], e.getKey()));
+        continue;
+      }
+      // Calls for documents are node visits
+      String change = null;
+      if (grewBy(before[1], after[1], threshold)) {
+        change = String.format("instructions %d -> %d (%+.1f%%)", before[1], after[1], percent(before[1], after[1]));
+      } else if (grewBy(before[0], after[0], threshold)) {
+        change = String.format("calls %d -> %d (%+.1f%%)", before[0], after[0], percent(before[0], after[0]));
+      }
+      if (change != null) {
+        out.println(String.format("GREW\t%s\t%s", change, e.getKey()));
+        grew++;
+      }
+    }
+    for (String key : baseline.keySet()) {
+      if (!current.containsKey(key)) {
+        out.println(String.format("gone\t%s", key));
+      }
+    }
+    out.println(String.format("%d of %d entries grew by more than %.1f%%", grew, current.size(), threshold));
+    return grew > 0 ? 1 : 0;
+  }
+
+  private static boolean grewBy(long before, long after, double thresholdPercent) {
+    return after > before && percent(before, after) > thresholdPercent;
+  }
+
+  private static double percent(long before, long after) {
+    return before == 0 ? Double.POSITIVE_INFINITY : 100.0 * (after - before) / before;
+  }
+
+  /** @return calls and instructions by "kind\tname" */
+  private static Map<String, long[]> read(String path) throws IOException {
+    Map<String, long[]> rows = new LinkedHashMap<>();
+    BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(path), StandardCharsets.UTF_8));
+    try {
+      String line = in.readLine();
+      if (!InstructionCounter.HEADER.equals(line)) {
+        throw new IOException(String.format("%s is not an instruction count report", path));
+      }
+      while ((line = in.readLine()) != null) {
+        String[] columns = line.split("\t");
+        if (columns.length == 4) {
+          rows.put(columns[0] + '\t' + columns[1], new long[] { Long.parseLong(columns[2]), Long.parseLong(columns[3]) });
+        }
+      }
+    } finally {
+      in.close();
+    }
+    return rows;
+  }
+}
@@ -0,0 +1,208 @@
+package com.philschatz.xslt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import net.sf.saxon.Controller;
+import net.sf.saxon.expr.XPathContext;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.om.StandardNames;
+import net.sf.saxon.om.TreeInfo;
+import net.sf.saxon.trace.InstructionInfo;
+
+/**
+ * Counts the instructions each template and function executes, and how often
+ * the nodes of each document become the current item. Unlike timings, the
+ * counts are the same on every run of the same stylesheet and input, so two
+ * reports can be compared (see {@link InstructionCountDiff}) to catch a change
+ * that makes a transform do more work.
+ *
+ * An instruction is counted towards the innermost template or function it runs
+ * in; instructions outside of any (global variables) count towards "(top
+ * level)". Source documents are named by their path relative to the input or
+ * the stylesheet, so reports written on different machines can be compared;
+ * all temporary trees share one "(temporary trees)" row. Only used from the
+ * transform thread.
+ */
+public class InstructionCounter implements RunReport {
+  static final String HEADER = "kind\tname\tcalls\tinstructions";
+  private static final String TOP_LEVEL = "(top level)";
+  private static final String TEMPORARY_TREES = "(temporary trees)";
+
+  private final InstructionTable table;
+  // By slot, see slotOf
+  private long[] calls = new long[64];
+  private long[] instructions = new long[64];
+  private int[] stack = new int[64];
+  // The top level is at the bottom of the stack
+  private int depth = 1;
+
+  // Node visits per document, by document number
+  private final Controller controller;
+  private final String sourceSystemId;
+  private final URI[] bases;
+  private final Map<Long, String> documents = new HashMap<>();
+  private final LongIntHashMap visits = new LongIntHashMap(16);
+  private TreeInfo lastTree;
+  private long lastDocument;
+
+  /**
+   * @param stylesheet the path of the stylesheet
+   * @param sourceSystemId the URI of the input document
+   */
+  public InstructionCounter(InstructionTable table, Controller controller, String stylesheet, String sourceSystemId) {
+    this.table = table;
+    this.controller = controller;
+    this.sourceSystemId = sourceSystemId;
+    this.bases = new URI[] { directoryOf(URI.create(sourceSystemId)),
+        directoryOf(new File(stylesheet).getAbsoluteFile().toURI()) };
+  }
+
+  private static URI directoryOf(URI uri) {
+    return uri.resolve(".");
+  }
+
+  private static boolean isComponent(int construct) {
+    return construct == StandardNames.XSL_TEMPLATE || construct == StandardNames.XSL_FUNCTION;
+  }
+
+  public void enter(InstructionInfo info, XPathContext context) {
+    if (isComponent(info.getConstructType())) {
+      int slot = slotOf(info, context);
+      if (depth == stack.length) {
+        stack = Arrays.copyOf(stack, depth * 2);
+      }
+      stack[depth++] = slot;
+      calls[slot]++;
+    }
+    instructions[stack[depth - 1]]++;
+  }
+
+  public void leave(InstructionInfo info) {
+    if (isComponent(info.getConstructType()) && depth > 1) {
+      depth--;
+    }
+  }
+
+  public void visit(Item item) {
+    if (!(item instanceof NodeInfo)) {
+      return;
+    }
+    TreeInfo tree = ((NodeInfo) item).getTreeInfo();
+    if (tree != lastTree) {
+      lastTree = tree;
+      lastDocument = tree.getDocumentNumber();
+      if (!documents.containsKey(lastDocument)) {
+        documents.put(lastDocument, documentName(tree));
+      }
+    }
+    visits.increment(lastDocument);
+  }
+
+  private String documentName(TreeInfo tree) {
+    String systemId = tree.getRootNode().getSystemId();
+    boolean source = controller.getDocumentPool().contains(tree) || sourceSystemId.equals(systemId);
+    if (!source || systemId == null || systemId.isEmpty()) {
+      return TEMPORARY_TREES;
+    }
+    try {
+      URI uri = new URI(systemId);
+      for (URI base : bases) {
+        URI relative = base.relativize(uri);
+        if (!relative.isAbsolute()) {
+          return relative.getPath();
+        }
+      }
+    } catch (URISyntaxException e) {
+      // Not a URI we can shorten
+    }
+    return systemId.replace('\t', ' ');
+  }
+
+  /** Where the counts of a template or function go; 0 is the top level */
+  private int slotOf(InstructionInfo info, XPathContext context) {
+    int slot = table.componentIdOf(info, context) + 1;
+    if (slot >= calls.length) {
+      calls = Arrays.copyOf(calls, Math.max(slot + 1, calls.length * 2));
+      instructions = Arrays.copyOf(instructions, calls.length);
+    }
+    return slot;
+  }
+
+  private String kindOf(int slot) {
+    return slot == 0 ? "-" : table.getComponentKind(slot - 1);
+  }
+
+  private String nameOf(int slot) {
+    return slot == 0 ? TOP_LEVEL : table.getComponentName(slot - 1);
+  }
+
+  /**
+   * Writes one line per template, function and document, sorted so that two
+   * reports can be diffed.
+   *
+   * @return a short summary for the debug console
+   */
+  @Override
+  public String writeReport(File reportFile) throws IOException {
+    long total = 0;
+    int slots = Math.min(calls.length, table.componentCount() + 1);
+    Map<String, String> lines = new TreeMap<>();
+    for (int slot = 0; slot < slots; slot++) {
+      total += instructions[slot];
+      if (calls[slot] > 0 || instructions[slot] > 0) {
+        lines.put(kindOf(slot) + '\t' + nameOf(slot), calls[slot] + "\t" + instructions[slot]);
+      }
+    }
+    Map<String, Long> documentVisits = new HashMap<>();
+    for (Map.Entry<Long, String> document : documents.entrySet()) {
+      Long before = documentVisits.get(document.getValue());
+      documentVisits.put(document.getValue(), (before == null ? 0 : before) + visits.get(document.getKey()));
+    }
+    for (Map.Entry<String, Long> document : documentVisits.entrySet()) {
+      lines.put("document\t" + document.getKey(), document.getValue() + "\t0");
+    }
+
+    PrintWriter out = new PrintWriter(reportFile, "UTF-8");
+    try {
+      out.println(HEADER);
+      out.println("total\t(all)\t0\t" + total);
+      for (Map.Entry<String, String> line : lines.entrySet()) {
+        out.println(line.getKey() + '\t' + line.getValue());
+      }
+    } finally {
+      out.close();
+    }
+
+    List<Integer> ids = new ArrayList<>();
+    for (int slot = 0; slot < slots; slot++) {
+      ids.add(slot);
+    }
+    Collections.sort(ids, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return Long.compare(instructions[b], instructions[a]);
+      }
+    });
+    StringBuilder summary = new StringBuilder();
+    summary.append(String.format("Instruction counts: %d instructions, %d documents visited%n", total,
+        documentVisits.size()));
+    summary.append("calls\tinstructions\tname\n");
+    for (int slot : ids.subList(0, Math.min(10, ids.size()))) {
+      summary.append(String.format("%d\t%d\t%s %s%n", calls[slot], instructions[slot], kindOf(slot), nameOf(slot)));
+    }
+    return summary.toString();
+  }
+}
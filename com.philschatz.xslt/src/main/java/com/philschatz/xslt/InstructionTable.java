@@ -0,0 +1,254 @@
+package com.philschatz.xslt;
+
+import java.io.File;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.sf.saxon.expr.XPathContext;
+import net.sf.saxon.expr.instruct.TemplateRule;
+import net.sf.saxon.om.StandardNames;
+import net.sf.saxon.om.StructuredQName;
+import net.sf.saxon.trace.InstructionInfo;
+import net.sf.saxon.trace.LocationKind;
+import net.sf.saxon.trans.rules.Rule;
+
+/**
+ * Gives every traced instruction a small dense integer id so the analysis modes
+ * can count into primitive arrays instead of hashing InstructionInfo objects.
+ *
+ * Templates and functions get a second id from {@link #componentIdOf}, by a
+ * name that stays the same when lines are added to the stylesheet, for the
+ * analyses that count per template or function.
+ *
+ * {@link #idOf(InstructionInfo)} and {@link #componentIdOf(InstructionInfo, XPathContext)}
+ * are only called from the transform thread. The descriptions can be read from
+ * any thread.
+ */
+public class InstructionTable {
+  private final IdentityHashMap<InstructionInfo, Integer> ids = new IdentityHashMap<>();
+  private final List<String> descriptions = new ArrayList<>();
+  private final List<String> systemIds = new ArrayList<>();
+  private final List<Integer> lineNumbers = new ArrayList<>();
+  private InstructionInfo lastInfo;
+  private int lastId;
+  private final IdentityHashMap<InstructionInfo, Integer> componentIds = new IdentityHashMap<>();
+  private final Map<String, Integer> componentIdsByName = new HashMap<>();
+  private final List<String> componentKinds = new ArrayList<>();
+  private final List<String> componentNames = new ArrayList<>();
+  private final Path stylesheetDirectory;
+
+  /** @param stylesheet the main stylesheet, which module paths are shown relative to; may be null */
+  public InstructionTable(String stylesheet) {
+    stylesheetDirectory = directoryOf(stylesheet);
+  }
+
+  public int idOf(InstructionInfo info) {
+    // Loops tend to enter the same instruction over and over
+    if (info == lastInfo) {
+      return lastId;
+    }
+    Integer id = ids.get(info);
+    if (id == null) {
+      id = register(describe(info), info.getSystemId(), info.getLineNumber());
+      ids.put(info, id);
+    }
+    lastInfo = info;
+    lastId = id;
+    return id;
+  }
+
+  private synchronized int register(String description, String systemId, int lineNumber) {
+    descriptions.add(description);
+    systemIds.add(systemId);
+    lineNumbers.add(lineNumber);
+    return descriptions.size() - 1;
+  }
+
+  /**
+   * The id of the xsl:template or xsl:function that info starts
+   *
+   * @param context the context info is entered with, which has the template rule the priority comes from
+   */
+  public int componentIdOf(InstructionInfo info, XPathContext context) {
+    Integer id = componentIds.get(info);
+    if (id == null) {
+      String kind = getDisplayName(info.getConstructType());
+      String name = describeComponent(info, templateRuleOf(info, context), stylesheetDirectory);
+      // The same template can be traced by more than one TraceExpression
+      id = componentIdsByName.get(kind + '\t' + name);
+      if (id == null) {
+        id = registerComponent(kind, name);
+        componentIdsByName.put(kind + '\t' + name, id);
+      }
+      componentIds.put(info, id);
+    }
+    return id;
+  }
+
+  private synchronized int registerComponent(String kind, String name) {
+    componentKinds.add(kind);
+    componentNames.add(name);
+    return componentNames.size() - 1;
+  }
+
+  public synchronized int componentCount() {
+    return componentNames.size();
+  }
+
+  /** e.g. xsl:template */
+  public synchronized String getComponentKind(int componentId) {
+    return componentKinds.get(componentId);
+  }
+
+  /** e.g. match=item priority=0.5 (lib/toc.xsl) */
+  public synchronized String getComponentName(int componentId) {
+    return componentNames.get(componentId);
+  }
+
+  public synchronized int size() {
+    return descriptions.size();
+  }
+
+  public synchronized String getDescription(int id) {
+    return descriptions.get(id);
+  }
+
+  public synchronized String getSystemId(int id) {
+    return systemIds.get(id);
+  }
+
+  public synchronized int getLineNumber(int id) {
+    return lineNumbers.get(id);
+  }
+
+  private static String describe(InstructionInfo info) {
+    String module = info.getSystemId();
+    if (module != null) {
+      module = module.substring(module.lastIndexOf('/') + 1);
+    }
+    StructuredQName name = info.getObjectName();
+    return String.format("%s%s (%s:%d)", getDisplayName(info.getConstructType()),
+        name == null ? "" : " " + name.getDisplayName(), module, info.getLineNumber());
+  }
+
+  /**
+   * A name for a template or function that stays the same when lines are added
+   * to the stylesheet. Two templates with the same match pattern in different
+   * modules or with different priorities get different names.
+   *
+   * @param rule                see {@link #templateRuleOf}; may be null
+   * @param stylesheetDirectory see {@link #directoryOf}; may be null
+   */
+  static String describeComponent(InstructionInfo info, TemplateRule rule, Path stylesheetDirectory) {
+    StringBuilder name = new StringBuilder();
+    if (info.getObjectName() != null) {
+      name.append(info.getObjectName().getDisplayName());
+    }
+    Object match = info.getProperty("match");
+    if (match != null) {
+      name.append(name.length() > 0 ? " " : "").append("match=").append(match);
+    }
+    Object mode = info.getProperty("mode");
+    if (mode != null) {
+      name.append(" mode=").append(mode);
+    }
+    if (rule != null) {
+      // A match="a | b" template has a rule, each with its own priority, per alternative
+      Set<String> priorities = new LinkedHashSet<>();
+      for (Rule r : rule.getRules()) {
+        double priority = r.getPriority();
+        priorities.add(priority == Math.rint(priority) ? String.valueOf((long) priority) : String.valueOf(priority));
+      }
+      if (!priorities.isEmpty()) {
+        name.append(" priority=").append(String.join(",", priorities));
+      }
+    }
+    String module = info.getSystemId();
+    if (module != null) {
+      name.append(" (").append(modulePath(module, stylesheetDirectory)).append(')');
+    }
+    // Tabs and newlines would break the reports
+    return name.toString().replace('\t', ' ').replace('\n', ' ');
+  }
+
+  /**
+   * The template rule whose body info is, if the context is running it. Saxon
+   * traces the body of a template, not the TemplateRule that has its priority.
+   */
+  static TemplateRule templateRuleOf(InstructionInfo info, XPathContext context) {
+    Rule current = context == null ? null : context.getCurrentTemplateRule();
+    if (current != null && current.getAction() instanceof TemplateRule
+        && ((TemplateRule) current.getAction()).getBody() == info) {
+      return (TemplateRule) current.getAction();
+    }
+    return null;
+  }
+
+  /** The directory of the main stylesheet, or null if there is none */
+  static Path directoryOf(String stylesheet) {
+    if (stylesheet == null) {
+      return null;
+    }
+    return Paths.get(stylesheet).toAbsolutePath().normalize().getParent();
+  }
+
+  /** The module's path relative to the main stylesheet, or its file name if it is not a local file */
+  static String modulePath(String systemId, Path stylesheetDirectory) {
+    if (stylesheetDirectory != null && systemId.startsWith("file:")) {
+      try {
+        Path module = Paths.get(new URI(systemId)).normalize();
+        return stylesheetDirectory.relativize(module).toString().replace(File.separatorChar, '/');
+      } catch (URISyntaxException | IllegalArgumentException | FileSystemNotFoundException e) {
+        // e.g. a module on another drive
+      }
+    }
+    return systemId.substring(systemId.lastIndexOf('/') + 1);
+  }
+
+  public static String getDisplayName(int constructType) {
+    return getConstructName(constructType).replace("{http://www.w3.org/1999/XSL/Transform}", "xsl:");
+  }
+
+  public static String getConstructName(int constructType) {
+    if (constructType < 1024) {
+      String name = StandardNames.getClarkName(constructType);
+      return name == null ? "Other" : name;
+    }
+    switch (constructType) {
+      case LocationKind.LITERAL_RESULT_ELEMENT:
+        return "LITERAL_RESULT_ELEMENT";
+      case LocationKind.LITERAL_RESULT_ATTRIBUTE:
+        return "LITERAL_RESULT_ATTRIBUTE";
+      case LocationKind.EXTENSION_INSTRUCTION:
+        return "EXTENSION_INSTRUCTION";
+      case LocationKind.TEMPLATE:
+        return "TEMPLATE";
+      case LocationKind.FUNCTION_CALL:
+        return "FUNCTION_CALL";
+      case LocationKind.XPATH_IN_XSLT:
+        return "XPATH_IN_XSLT";
+      case LocationKind.LET_EXPRESSION:
+        return "LET_EXPRESSION";
+      case LocationKind.TRACE_CALL:
+        return "TRACE_CALL";
+      case LocationKind.SAXON_EVALUATE:
+        return "SAXON_EVALUATE";
+      case LocationKind.FUNCTION:
+        return "FUNCTION";
+      case LocationKind.XPATH_EXPRESSION:
+        return "XPATH_EXPRESSION";
+      default:
+        return "Other";
+    }
+  }
+}
@@ -0,0 +1,117 @@
+package com.philschatz.xslt;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing map from long to int, for counters that are bumped on
+ * every trace event. No boxing, and no allocation except when growing.
+ *
+ * Not thread-safe.
+ */
+public class LongIntHashMap {
+  private static final float LOAD_FACTOR = 0.5f;
+
+  private long[] keys;
+  private int[] values;
+  private boolean[] used;
+  private int size;
+  private int mask;
+
+  public LongIntHashMap() {
+    this(1024);
+  }
+
+  public LongIntHashMap(int expectedSize) {
+    int capacity = Integer.highestOneBit(Math.max(16, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+    keys = new long[capacity];
+    values = new int[capacity];
+    used = new boolean[capacity];
+    mask = capacity - 1;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  private static int hash(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  private int slot(long key) {
+    int i = hash(key) & mask;
+    while (used[i] && keys[i] != key) {
+      i = (i + 1) & mask;
+    }
+    return i;
+  }
+
+  /** @return the value, or 0 if the key is not in the map */
+  public int get(long key) {
+    int i = slot(key);
+    return used[i] ? values[i] : 0;
+  }
+
+  public boolean containsKey(long key) {
+    return used[slot(key)];
+  }
+
+  public void put(long key, int value) {
+    int i = slot(key);
+    if (!used[i]) {
+      used[i] = true;
+      keys[i] = key;
+      if (++size > keys.length * LOAD_FACTOR) {
+        values[i] = value;
+        grow();
+        return;
+      }
+    }
+    values[i] = value;
+  }
+
+  /** Adds one to the value of the key (which starts at 0) and returns the new value */
+  public int increment(long key) {
+    int i = slot(key);
+    if (used[i]) {
+      return ++values[i];
+    }
+    put(key, 1);
+    return 1;
+  }
+
+  /** The keys, in no particular order */
+  public long[] keys() {
+    long[] ret = new long[size];
+    int n = 0;
+    for (int i = 0; i < keys.length; i++) {
+      if (used[i]) {
+        ret[n++] = keys[i];
+      }
+    }
+    return ret;
+  }
+
+  public void clear() {
+    Arrays.fill(used, false);
+    size = 0;
+  }
+
+  private void grow() {
+    long[] oldKeys = keys;
+    int[] oldValues = values;
+    boolean[] oldUsed = used;
+    keys = new long[oldKeys.length * 2];
+    values = new int[oldKeys.length * 2];
+    used = new boolean[oldKeys.length * 2];
+    mask = keys.length - 1;
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldUsed[i]) {
+        int j = slot(oldKeys[i]);
+        used[j] = true;
+        keys[j] = oldKeys[i];
+        values[j] = oldValues[i];
+      }
+    }
+  }
+}
@@ -0,0 +1,224 @@
+package com.philschatz.xslt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.saxon.expr.XPathContext;
+import net.sf.saxon.om.GroundedValue;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.om.Sequence;
+import net.sf.saxon.om.StandardNames;
+import net.sf.saxon.trace.InstructionInfo;
+import net.sf.saxon.tree.tiny.TinyNodeImpl;
+import net.sf.saxon.type.Type;
+import net.sf.saxon.value.AtomicValue;
+
+/**
+ * Finds the xsl:functions that are called many times with the same arguments,
+ * where cache="yes" (or an xsl:key, or a variable) would pay off.
+ *
+ * On entry to a function the arguments are read from the first slots of its
+ * stack frame and reduced to a 64-bit fingerprint: atomic values by type and
+ * value, nodes by identity (document and node number). Sequences longer than
+ * a few items are fingerprinted by their first items and their length. The
+ * number of distinct fingerprints, against the number of calls, says how much
+ * a cache would save. Only used from the transform thread.
+ */
+public class MemoAdvisor implements RunReport {
+  // Fingerprinting a long sequence would cost more than the call
+  private static final int MAX_ITEMS = 16;
+  // Stop remembering new arguments of a function after this many
+  private static final int MAX_DISTINCT = 1 << 20;
+  private static final long ATTRIBUTE = 0x80000000L;
+
+  private final InstructionTable table;
+  // By component id
+  private Function[] functions = new Function[64];
+  private Function[] stack = new Function[64];
+  private long[] started = new long[64];
+  private int depth;
+
+  private static class Function {
+    final String name;
+    final LongIntHashMap arguments = new LongIntHashMap(64);
+    long calls;
+    long nanos;
+    int active;
+    boolean saturated;
+
+    Function(String name) {
+      this.name = name;
+    }
+
+    /** The share of the time a cache would save, if a repeated call cost nothing */
+    long savableNanos() {
+      return calls == 0 ? 0 : (long) (nanos * (1.0 - (double) arguments.size() / calls));
+    }
+  }
+
+  public MemoAdvisor(InstructionTable table) {
+    this.table = table;
+  }
+
+  public void enter(InstructionInfo info, XPathContext context) {
+    if (info.getConstructType() != StandardNames.XSL_FUNCTION) {
+      return;
+    }
+    Function f = functionOf(info, context);
+    f.calls++;
+    long fingerprint = fingerprint(context.getStackFrame().getStackFrameValues());
+    if (f.arguments.containsKey(fingerprint) || f.arguments.size() < MAX_DISTINCT) {
+      f.arguments.increment(fingerprint);
+    } else {
+      f.saturated = true;
+    }
+    if (depth == stack.length) {
+      stack = Arrays.copyOf(stack, depth * 2);
+      started = Arrays.copyOf(started, depth * 2);
+    }
+    stack[depth] = f;
+    started[depth] = System.nanoTime();
+    depth++;
+    f.active++;
+  }
+
+  public void leave(InstructionInfo info) {
+    if (info.getConstructType() != StandardNames.XSL_FUNCTION || depth == 0) {
+      return;
+    }
+    depth--;
+    Function f = stack[depth];
+    stack[depth] = null;
+    // Time a recursive function once, in its outermost call
+    if (--f.active == 0) {
+      f.nanos += System.nanoTime() - started[depth];
+    }
+  }
+
+  /**
+   * The parameters take the first slots of a function's stack frame; its
+   * local variables come after them and are still unbound on entry.
+   */
+  private static long fingerprint(Sequence<?>[] slots) {
+    long h = 1;
+    if (slots == null) {
+      return h;
+    }
+    for (int i = 0; i < slots.length && slots[i] != null; i++) {
+      h = mix(h, fingerprint(slots[i]));
+    }
+    return h;
+  }
+
+  private static long fingerprint(Sequence<?> value) {
+    if (value instanceof Item) {
+      return fingerprint((Item<?>) value);
+    }
+    if (!(value instanceof GroundedValue)) {
+      // Not evaluated yet, so there is nothing cheap to compare
+      return System.identityHashCode(value);
+    }
+    GroundedValue<?> sequence = (GroundedValue<?>) value;
+    int length = sequence.getLength();
+    long h = length;
+    for (int i = 0; i < length && i < MAX_ITEMS; i++) {
+      h = mix(h, fingerprint(sequence.itemAt(i)));
+    }
+    return h;
+  }
+
+  private static long fingerprint(Item<?> item) {
+    if (item instanceof TinyNodeImpl) {
+      TinyNodeImpl node = (TinyNodeImpl) item;
+      // Attributes are numbered separately from the other nodes of a tiny tree
+      long nodeNumber = node.getNodeNumber() | (node.getNodeKind() == Type.ATTRIBUTE ? ATTRIBUTE : 0);
+      return node.getTreeInfo().getDocumentNumber() << 32 | nodeNumber;
+    }
+    if (item instanceof NodeInfo) {
+      return System.identityHashCode(((NodeInfo) item).getTreeInfo()) * 31L + ((NodeInfo) item).hashCode();
+    }
+    if (item instanceof AtomicValue) {
+      AtomicValue atomic = (AtomicValue) item;
+      long type = atomic.getPrimitiveType().getFingerprint();
+      try {
+        return type << 32 | (atomic.hashCode() & 0xffffffffL);
+      } catch (RuntimeException e) {
+        // e.g. values that cannot be compared for equality
+        return type << 32 | (atomic.getStringValue().hashCode() & 0xffffffffL);
+      }
+    }
+    // Function items and maps
+    return System.identityHashCode(item);
+  }
+
+  private static long mix(long h, long v) {
+    h = (h ^ v) * 0x9E3779B97F4A7C15L;
+    return h ^ (h >>> 29);
+  }
+
+  private Function functionOf(InstructionInfo info, XPathContext context) {
+    int id = table.componentIdOf(info, context);
+    if (id >= functions.length) {
+      functions = Arrays.copyOf(functions, Math.max(id + 1, functions.length * 2));
+    }
+    Function f = functions[id];
+    if (f == null) {
+      f = functions[id] = new Function(table.getComponentName(id));
+    }
+    return f;
+  }
+
+  /**
+   * Writes every function that was called, the ones a cache would save the
+   * most time on first.
+   *
+   * @return a short summary for the debug console
+   */
+  @Override
+  public String writeReport(File reportFile) throws IOException {
+    List<Function> all = new ArrayList<>();
+    for (Function f : functions) {
+      if (f != null) {
+        all.add(f);
+      }
+    }
+    Collections.sort(all, new Comparator<Function>() {
+      @Override
+      public int compare(Function a, Function b) {
+        return Long.compare(b.savableNanos(), a.savableNanos());
+      }
+    });
+
+    PrintWriter out = new PrintWriter(reportFile, "UTF-8");
+    try {
+      out.println("calls\tdistinct\tdistinct%\tms\tsavable ms\tfunction");
+      for (Function f : all) {
+        out.println(line(f));
+      }
+    } finally {
+      out.close();
+    }
+
+    StringBuilder summary = new StringBuilder();
+    summary.append(String.format("Function calls: %d functions; the ones a cache would help most:%n", all.size()));
+    summary.append("calls\tdistinct\tdistinct%\tms\tsavable ms\tfunction\n");
+    for (Function f : all.subList(0, Math.min(10, all.size()))) {
+      summary.append(line(f)).append('\n');
+    }
+    return summary.toString();
+  }
+
+  private static String line(Function f) {
+    return String.format("%d\t%s%d\t%.1f\t%d\t%d\t%s", f.calls, f.saturated ? ">" : "", f.arguments.size(),
+        f.calls == 0 ? 0.0 : 100.0 * f.arguments.size() / f.calls, TimeUnit.NANOSECONDS.toMillis(f.nanos),
+        TimeUnit.NANOSECONDS.toMillis(f.savableNanos()), f.name);
+  }
+}
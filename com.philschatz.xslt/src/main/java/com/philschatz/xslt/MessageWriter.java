@@ -0,0 +1,227 @@
+package com.philschatz.xslt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+import com.microsoft.java.debug.core.protocol.Events;
+import com.microsoft.java.debug.core.protocol.Messages;
+import com.microsoft.java.debug.core.protocol.Responses;
+import com.microsoft.java.debug.core.protocol.Types;
+
+/**
+ * Writes protocol messages to the client without building them up as Strings
+ * first. The JSON is streamed into a buffer that is reused from one message to
+ * the next (its length is needed for the Content-Length header). The header
+ * is then filled in at the front of the buffer, so the whole message goes to
+ * the socket in one write.
+ *
+ * The messages that get big (variables, stack traces and output) are written
+ * field by field; everything else is streamed through Gson's reflection, which
+ * produces the same JSON the base class would.
+ */
+public class MessageWriter {
+  private static final byte[] CONTENT_LENGTH = "Content-Length: ".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] TWO_CRLF = "\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+  // Room for the longest header, with an int of digits
+  private static final int HEADER_BYTES = CONTENT_LENGTH.length + 10 + TWO_CRLF.length;
+  // A buffer that grew for one huge response is not kept around forever
+  private static final int MAX_RETAINED_BUFFER = 1 << 20;
+
+  private final OutputStream out;
+  private final Gson gson = new Gson();
+  private Buffer buffer;
+  private Writer chars;
+  private int sequenceNumber = 1;
+
+  /** A ByteArrayOutputStream that lets us write its contents without a copy */
+  private static class Buffer extends ByteArrayOutputStream {
+    Buffer() {
+      super(8192);
+    }
+
+    int capacity() {
+      return buf.length;
+    }
+
+    /** Empties the buffer, leaving room for the header in front of the body */
+    void begin() {
+      // The buffer never shrinks below 8192 bytes, so the room is there
+      count = HEADER_BYTES;
+    }
+
+    /** Puts the header right in front of the body and writes both at once */
+    void writeMessage(OutputStream out) throws IOException {
+      int i = HEADER_BYTES - TWO_CRLF.length;
+      System.arraycopy(TWO_CRLF, 0, buf, i, TWO_CRLF.length);
+      int n = count - HEADER_BYTES;
+      do {
+        buf[--i] = (byte) ('0' + n % 10);
+        n /= 10;
+      } while (n > 0);
+      i -= CONTENT_LENGTH.length;
+      System.arraycopy(CONTENT_LENGTH, 0, buf, i, CONTENT_LENGTH.length);
+      out.write(buf, i, count - i);
+    }
+  }
+
+  public MessageWriter(OutputStream out) {
+    this.out = out;
+    newBuffer();
+  }
+
+  private void newBuffer() {
+    buffer = new Buffer();
+    chars = new OutputStreamWriter(buffer, StandardCharsets.UTF_8);
+  }
+
+  public synchronized void writeResponse(Messages.Response response) throws IOException {
+    JsonWriter json = begin();
+    json.beginObject();
+    json.name("seq").value(response.seq = sequenceNumber++);
+    json.name("type").value("response");
+    json.name("request_seq").value(response.request_seq);
+    json.name("success").value(response.success);
+    json.name("command").value(response.command);
+    if (response.message != null) {
+      json.name("message").value(response.message);
+    }
+    if (response.body != null) {
+      json.name("body");
+      writeBody(json, response.body);
+    }
+    json.endObject();
+    end(json);
+  }
+
+  public synchronized void writeEvent(Events.DebugEvent event) throws IOException {
+    JsonWriter json = begin();
+    json.beginObject();
+    json.name("seq").value(sequenceNumber++);
+    json.name("type").value("event");
+    json.name("event").value(event.type);
+    json.name("body");
+    writeBody(json, event);
+    json.endObject();
+    end(json);
+  }
+
+  private JsonWriter begin() {
+    buffer.begin();
+    JsonWriter json = new JsonWriter(chars);
+    // Like Gson, leave out fields that are null
+    json.setSerializeNulls(false);
+    return json;
+  }
+
+  private void end(JsonWriter json) throws IOException {
+    json.flush();
+    buffer.writeMessage(out);
+    out.flush();
+    if (buffer.capacity() > MAX_RETAINED_BUFFER) {
+      newBuffer();
+    }
+  }
+
+  private void writeBody(JsonWriter json, Object body) throws IOException {
+    if (body instanceof Responses.VariablesResponseBody) {
+      json.beginObject();
+      json.name("variables");
+      writeVariables(json, ((Responses.VariablesResponseBody) body).variables);
+      json.endObject();
+    } else if (body instanceof Responses.StackTraceResponseBody) {
+      Responses.StackTraceResponseBody stackTrace = (Responses.StackTraceResponseBody) body;
+      json.beginObject();
+      json.name("stackFrames");
+      json.beginArray();
+      for (Types.StackFrame frame : stackTrace.stackFrames) {
+        json.beginObject();
+        json.name("id").value(frame.id);
+        json.name("name").value(frame.name);
+        if (frame.source != null) {
+          json.name("source");
+          writeSource(json, frame.source);
+        }
+        json.name("line").value(frame.line);
+        json.name("column").value(frame.column);
+        json.endObject();
+      }
+      json.endArray();
+      json.name("totalFrames").value(stackTrace.totalFrames);
+      json.endObject();
+    } else if (body instanceof Events.OutputEvent) {
+      Events.OutputEvent output = (Events.OutputEvent) body;
+      json.beginObject();
+      json.name("type").value(output.type);
+      if (output.category != null) {
+        json.name("category").value(output.category.name());
+      }
+      json.name("output").value(output.output);
+      if (output.source != null) {
+        json.name("source");
+        writeSource(json, output.source);
+      }
+      json.name("line").value(output.line);
+      json.endObject();
+    } else {
+      gson.toJson(body, body.getClass(), json);
+    }
+  }
+
+  private void writeVariables(JsonWriter json, List<Types.Variable> variables) throws IOException {
+    json.beginArray();
+    for (Types.Variable v : variables) {
+      json.beginObject();
+      json.name("name").value(v.name);
+      json.name("value").value(v.value);
+      if (v.type != null) {
+        json.name("type").value(v.type);
+      }
+      json.name("variablesReference").value(v.variablesReference);
+      json.name("namedVariables").value(v.namedVariables);
+      json.name("indexedVariables").value(v.indexedVariables);
+      if (v.evaluateName != null) {
+        json.name("evaluateName").value(v.evaluateName);
+      }
+      if (v instanceof ExtraTypesVariable) {
+        ExtraTypesVariable extra = (ExtraTypesVariable) v;
+        if (extra.source != null) {
+          json.name("source");
+          writeSource(json, extra.source);
+        }
+        if (extra.line != null) {
+          json.name("line").value(extra.line);
+        }
+        if (extra.column != null) {
+          json.name("column").value(extra.column);
+        }
+        if (extra.presentationHint != null) {
+          json.name("presentationHint");
+          json.beginObject();
+          json.name("lazy").value(extra.presentationHint.lazy);
+          json.endObject();
+        }
+      }
+      json.endObject();
+    }
+    json.endArray();
+  }
+
+  private void writeSource(JsonWriter json, Types.Source source) throws IOException {
+    json.beginObject();
+    if (source.name != null) {
+      json.name("name").value(source.name);
+    }
+    if (source.path != null) {
+      json.name("path").value(source.path);
+    }
+    json.name("sourceReference").value(source.sourceReference);
+    json.endObject();
+  }
+}
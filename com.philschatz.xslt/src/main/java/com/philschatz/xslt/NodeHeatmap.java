@@ -0,0 +1,184 @@
+package com.philschatz.xslt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.saxon.Controller;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.tree.tiny.TinyAttributeImpl;
+import net.sf.saxon.tree.tiny.TinyNodeImpl;
+import net.sf.saxon.tree.tiny.TinyTree;
+import net.sf.saxon.tree.util.Navigator;
+import net.sf.saxon.type.Type;
+
+/**
+ * Counts how often each source node becomes the current item. Nodes visited far
+ * more often than their neighbours usually mean a `//` inside a loop or an
+ * xsl:apply-templates that walks the same subtree again and again.
+ *
+ * Nodes are counted by (document number, node number) in a primitive map, so
+ * this only handles nodes of tiny trees (what Saxon builds by default). Only
+ * the input and the documents in the document pool are counted, as these live
+ * as long as the run does anyway; nodes of temporary trees, which would have
+ * to be kept alive until the report is written, are just counted like other
+ * items. Only used from the transform thread.
+ */
+public class NodeHeatmap implements RunReport {
+  private static final long ATTRIBUTE = 0x80000000L;
+  private static final int TOP = 50;
+
+  private final Controller controller;
+  private final String sourceSystemId;
+  private final LongIntHashMap visits = new LongIntHashMap(1 << 16);
+  // The source documents by document number
+  private final Map<Long, TinyTree> trees = new HashMap<>();
+  // Numbers of the temporary trees seen so far
+  private final LongIntHashMap temporary = new LongIntHashMap(16);
+  private TinyTree lastTree;
+  private long lastDocument;
+  private boolean lastIsSource;
+  private long total;
+  private long otherItems;
+
+  /**
+   * @param sourceSystemId the URI of the input document
+   */
+  public NodeHeatmap(Controller controller, String sourceSystemId) {
+    this.controller = controller;
+    this.sourceSystemId = sourceSystemId;
+  }
+
+  public void visit(Item item) {
+    total++;
+    if (!(item instanceof TinyNodeImpl)) {
+      otherItems++;
+      return;
+    }
+    TinyNodeImpl node = (TinyNodeImpl) item;
+    TinyTree tree = node.getTree();
+    if (tree != lastTree) {
+      lastDocument = tree.getDocumentNumber();
+      lastIsSource = trees.containsKey(lastDocument);
+      if (!lastIsSource && !temporary.containsKey(lastDocument)) {
+        // Looking a tree up in the pool is a linear search, so it is done once per tree
+        lastIsSource = controller.getDocumentPool().contains(tree)
+            || sourceSystemId.equals(tree.getRootNode().getSystemId());
+        if (lastIsSource) {
+          trees.put(lastDocument, tree);
+        } else {
+          temporary.put(lastDocument, 1);
+        }
+      }
+      lastTree = tree;
+    }
+    if (!lastIsSource) {
+      otherItems++;
+      return;
+    }
+    // Attributes are numbered separately from the other nodes of a tiny tree
+    long nodeNumber = node.getNodeNumber() | (node.getNodeKind() == Type.ATTRIBUTE ? ATTRIBUTE : 0);
+    visits.increment(lastDocument << 32 | nodeNumber);
+  }
+
+  private NodeInfo getNode(long key) {
+    TinyTree tree = trees.get(key >>> 32);
+    int nodeNumber = (int) (key & 0x7FFFFFFFL);
+    return (key & ATTRIBUTE) != 0 ? new TinyAttributeImpl(tree, nodeNumber) : tree.getNode(nodeNumber);
+  }
+
+  /** The path of a node without positions, e.g. /root/item/@n */
+  private static String getGenericPath(NodeInfo node) {
+    List<String> steps = new ArrayList<>();
+    for (NodeInfo n = node; n != null && n.getNodeKind() != Type.DOCUMENT; n = n.getParent()) {
+      switch (n.getNodeKind()) {
+        case Type.ATTRIBUTE:
+          steps.add("@" + n.getDisplayName());
+          break;
+        case Type.TEXT:
+          steps.add("text()");
+          break;
+        case Type.COMMENT:
+          steps.add("comment()");
+          break;
+        case Type.PROCESSING_INSTRUCTION:
+          steps.add("processing-instruction()");
+          break;
+        default:
+          steps.add(n.getDisplayName());
+      }
+    }
+    Collections.reverse(steps);
+    StringBuilder path = new StringBuilder();
+    for (String step : steps) {
+      path.append('/').append(step);
+    }
+    return path.length() == 0 ? "/" : path.toString();
+  }
+
+  /** Writes the most visited nodes and paths, and returns a short summary */
+  @Override
+  public String writeReport(File reportFile) throws IOException {
+    long[] keys = visits.keys();
+    // (count, index) packed into one long so the sort stays primitive
+    long[] byCount = new long[keys.length];
+    Map<String, long[]> paths = new HashMap<>();
+    for (int i = 0; i < keys.length; i++) {
+      int count = visits.get(keys[i]);
+      byCount[i] = (long) count << 32 | i;
+      String path = getGenericPath(getNode(keys[i]));
+      long[] p = paths.get(path);
+      if (p == null) {
+        p = new long[2];
+        paths.put(path, p);
+      }
+      p[0] += count;
+      p[1]++;
+    }
+    Arrays.sort(byCount);
+
+    StringBuilder summary = new StringBuilder();
+    summary.append(String.format("Node heatmap: %d items became current, %d distinct nodes in %d source documents (%d other items and temporary nodes)%n",
+        total, keys.length, trees.size(), otherItems));
+    PrintWriter out = new PrintWriter(reportFile, "UTF-8");
+    try {
+      out.println(summary.toString().trim());
+      out.println();
+      out.println("visits\tlocation\tnode");
+      for (int i = byCount.length - 1; i >= Math.max(0, byCount.length - TOP); i--) {
+        NodeInfo node = getNode(keys[(int) byCount[i]]);
+        String line = String.format("%d\t%s:%d\t%s", byCount[i] >>> 32, node.getSystemId(), node.getLineNumber(),
+            Navigator.getPath(node));
+        out.println(line);
+        if (i >= byCount.length - 10) {
+          summary.append(line).append('\n');
+        }
+      }
+
+      List<Map.Entry<String, long[]>> sorted = new ArrayList<>(paths.entrySet());
+      Collections.sort(sorted, new Comparator<Map.Entry<String, long[]>>() {
+        @Override
+        public int compare(Map.Entry<String, long[]> a, Map.Entry<String, long[]> b) {
+          return Long.compare(b.getValue()[0], a.getValue()[0]);
+        }
+      });
+      out.println();
+      out.println("visits\tnodes\tvisits/node\tpath");
+      for (Map.Entry<String, long[]> e : sorted.subList(0, Math.min(TOP, sorted.size()))) {
+        long[] p = e.getValue();
+        out.println(String.format("%d\t%d\t%.1f\t%s", p[0], p[1], (double) p[0] / p[1], e.getKey()));
+      }
+    } finally {
+      out.close();
+    }
+    return summary.toString();
+  }
+}
@@ -3,6 +3,7 @@ package com.philschatz.xslt;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 class ObjectKey<O> {
 	public Long id;
@@ -25,7 +26,7 @@ class ObjectMapping<O, V> {
 
 /** from https://github.com/fwcd/kotlin-debug-adapter  */
 class ObjectPool<O, V> {
-  private static long currentID = 1000L;
+  private static final AtomicLong currentID = new AtomicLong(1000L);
 
   public static class Unit {
     private Unit() { /* Singleton */ }
@@ -35,23 +36,23 @@ class ObjectPool<O, V> {
   private HashMap<Long, ObjectMapping<O, V>> mappingsByID = new HashMap<>();
   private HashMap<O, HashSet<ObjectMapping<O, V>>> mappingsByOwner = new HashMap<>();
   
-  public boolean isEmpty() { return mappingsByID.isEmpty(); }
-  public int size() { return mappingsByID.size(); }
-  public void clear() { mappingsByID.clear(); mappingsByOwner.clear(); }
+  // Filled in by the transform thread and read by the request thread
+  public synchronized boolean isEmpty() { return mappingsByID.isEmpty(); }
+  public synchronized int size() { return mappingsByID.size(); }
+  public synchronized void clear() { mappingsByID.clear(); mappingsByOwner.clear(); }
 
-  public long store(O owner, V value) {
-    long id = ObjectPool.currentID;
+  public synchronized long store(O owner, V value) {
+    long id = ObjectPool.currentID.getAndIncrement();
     ObjectKey<O> key = new ObjectKey<>(id, owner);
     ObjectMapping<O, V> mapping = new ObjectMapping<>(key, value);
     mappingsByID.put(id, mapping);
     mappingsByOwner.putIfAbsent(owner, new HashSet<ObjectMapping<O, V>>());
     mappingsByOwner.get(owner).add(mapping);
-    ObjectPool.currentID++;
     return id;
   }
 
 
-  public void removeAllOwnedBy(O owner) {
+  public synchronized void removeAllOwnedBy(O owner) {
     HashSet<ObjectMapping<O, V>> mappings = mappingsByOwner.get(owner);
     if (mappings != null) {
       for (ObjectMapping<O, V> mapping : mappings) {
@@ -61,7 +62,7 @@ class ObjectPool<O, V> {
     mappingsByOwner.remove(owner);
   }
 
-  public void removeByID(long id) {
+  public synchronized void removeByID(long id) {
     ObjectMapping<O, V> it = mappingsByID.get(id);
     if (it != null) {
       HashSet<ObjectMapping<O, V>> o = mappingsByOwner.get(it.key.owner);
@@ -72,12 +73,12 @@ class ObjectPool<O, V> {
     mappingsByID.remove(id);
   }
 	
-  public V getById(long id) {
+  public synchronized V getById(long id) {
     ObjectMapping<O, V> it = mappingsByID.get(id);
     return (it == null) ? null : it.value;
   }
 	
-  public Set<V> getOwnedBy(O owner) {
+  public synchronized Set<V> getOwnedBy(O owner) {
     HashSet<ObjectMapping<O, V>> it = mappingsByOwner.get(owner);
     HashSet<V> ret = new HashSet<>();
     if (it == null) { return ret; }
@@ -87,6 +88,6 @@ class ObjectPool<O, V> {
     return ret;
   }
 	
-  public boolean containsID(long id) { return mappingsByID.containsKey(id); }
+  public synchronized boolean containsID(long id) { return mappingsByID.containsKey(id); }
 
 }
@@ -0,0 +1,147 @@
+package com.philschatz.xslt;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Passes the serialized output through to the destination file and keeps the
+ * most recent part of it in a fixed-size ring buffer, so the client can see
+ * what the transform has written so far while it is paused.
+ *
+ * The transform thread only copies into the ring (a short synchronized
+ * arraycopy); reading it and sending events to the client happen on other
+ * threads.
+ */
+public class OutputPreview extends FilterWriter {
+  private final char[] ring;
+  /** Total number of characters written; the ring holds the last ones */
+  private long written;
+
+  // Only touched by the event timer
+  private ScheduledExecutorService timer;
+  private long sent;
+
+  /** A part of the output */
+  public static class Chunk {
+    /** Offset of the first character of text in the whole output */
+    public final long start;
+    public final String text;
+    /** How many characters there are in total so far */
+    public final long written;
+
+    Chunk(long start, String text, long written) {
+      this.start = start;
+      this.text = text;
+      this.written = written;
+    }
+  }
+
+  public OutputPreview(Writer out, int capacity) {
+    super(out);
+    ring = new char[Math.max(1, capacity)];
+  }
+
+  @Override
+  public void write(int c) throws IOException {
+    out.write(c);
+    synchronized (ring) {
+      ring[(int) (written % ring.length)] = (char) c;
+      written++;
+    }
+  }
+
+  @Override
+  public void write(char[] cbuf, int off, int len) throws IOException {
+    out.write(cbuf, off, len);
+    synchronized (ring) {
+      // Only the tail of a write larger than the ring can end up in it
+      int skip = Math.max(0, len - ring.length);
+      written += skip;
+      off += skip;
+      len -= skip;
+      while (len > 0) {
+        int at = (int) (written % ring.length);
+        int n = Math.min(len, ring.length - at);
+        System.arraycopy(cbuf, off, ring, at, n);
+        written += n;
+        off += n;
+        len -= n;
+      }
+    }
+  }
+
+  @Override
+  public void write(String str, int off, int len) throws IOException {
+    out.write(str, off, len);
+    synchronized (ring) {
+      int skip = Math.max(0, len - ring.length);
+      written += skip;
+      off += skip;
+      len -= skip;
+      while (len > 0) {
+        int at = (int) (written % ring.length);
+        int n = Math.min(len, ring.length - at);
+        str.getChars(off, off + n, ring, at);
+        written += n;
+        off += n;
+        len -= n;
+      }
+    }
+  }
+
+  /**
+   * @param since the offset to read from. Output that has already left the
+   *              ring is skipped, so the chunk may start later than this.
+   */
+  public Chunk read(long since) {
+    synchronized (ring) {
+      long start = Math.max(Math.max(0, since), written - Math.min(written, ring.length));
+      int length = (int) Math.max(0, written - start);
+      char[] text = new char[length];
+      int at = (int) (start % ring.length);
+      int first = Math.min(length, ring.length - at);
+      System.arraycopy(ring, at, text, 0, first);
+      System.arraycopy(ring, 0, text, first, length - first);
+      return new Chunk(start, new String(text), written);
+    }
+  }
+
+  /** Sends what was written since the last event every intervalMillis, if anything was */
+  public void startEvents(final ProtocolServer server, final long threadId, long intervalMillis) {
+    timer = Executors.newSingleThreadScheduledExecutor(Threads.daemonThreads("Xslt Output Preview"));
+    timer.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        sendEvent(server, threadId);
+      }
+    }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /** Stops the events, after sending whatever is left */
+  public void stopEvents(final ProtocolServer server, final long threadId) {
+    if (timer == null) {
+      return;
+    }
+    timer.shutdown();
+    try {
+      timer.awaitTermination(1, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    sendEvent(server, threadId);
+    timer = null;
+  }
+
+  private void sendEvent(ProtocolServer server, long threadId) {
+    Chunk chunk = read(sent);
+    if (chunk.text.isEmpty()) {
+      return;
+    }
+    server.sendEvent(new XSLTEvents.OutputPreviewEvent(threadId, chunk, chunk.start - sent));
+    sent = chunk.written;
+  }
+}
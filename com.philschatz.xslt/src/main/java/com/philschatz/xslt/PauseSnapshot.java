@@ -0,0 +1,200 @@
+package com.philschatz.xslt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.microsoft.java.debug.core.adapter.AdapterUtils;
+import com.microsoft.java.debug.core.protocol.Types;
+
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.NodeInfo;
+
+/**
+ * The state of a paused transform. It is built by the transform thread when it
+ * pauses; the frames and current items are not changed afterwards, so requests
+ * from the client can read them without taking any locks. Each pause gets its
+ * own variables pool; a late request holding on to an old snapshot keeps
+ * seeing consistent ids.
+ *
+ * What is rendered for the client is cached here, so the snapshot does change
+ * after the pause: the stack trace and the responses to VARIABLES requests are
+ * filled in by whichever thread asks first (the caches are thread-safe), and a
+ * variable that is expanded again keeps its children's ids. {@link #prefetch}
+ * renders the ones the client is about to ask for while the stopped event is
+ * on its way; a request for one that is still being rendered waits for it
+ * instead of rendering it a second time.
+ */
+public class PauseSnapshot {
+  public static final PauseSnapshot EMPTY = new PauseSnapshot(Collections.<StackFrame>emptyList(),
+      Collections.<Item>emptyList(), null, new ObjectPool<ObjectPool.Unit, Variable>());
+
+  /** Frames ordered outermost first, the same order they were entered */
+  public final List<StackFrame> frames;
+  /** Items made current by xsl:for-each, xsl:apply-templates etc., outermost first */
+  public final List<Item> currentItems;
+  /** The global variables and parameters; null when nothing is paused */
+  public final GlobalScope globals;
+  public final ObjectPool<ObjectPool.Unit, Variable> variablesPool;
+  // How many children of each variable of the innermost frame are prefetched;
+  // the client asks for a long sequence in pages of this size
+  static final int PREFETCH_PAGE = 100;
+
+  private List<Types.StackFrame> rendered;
+  // Keyed by variablesReference, start and count of the request
+  private final ConcurrentHashMap<String, FutureTask<List<Types.Variable>>> renderedVariables = new ConcurrentHashMap<>();
+  private final AtomicBoolean prefetchCancelled = new AtomicBoolean();
+
+  PauseSnapshot(List<StackFrame> frames, List<Item> currentItems, GlobalScope globals,
+      ObjectPool<ObjectPool.Unit, Variable> variablesPool) {
+    this.frames = Collections.unmodifiableList(frames);
+    this.currentItems = Collections.unmodifiableList(currentItems);
+    this.globals = globals;
+    this.variablesPool = variablesPool;
+  }
+
+  /**
+   * The frames as the client sees them, innermost first. They are rendered on
+   * the first STACKTRACE request of a pause and reused for the following ones
+   * (the client usually pages through a deep stack).
+   */
+  public synchronized List<Types.StackFrame> getRenderedFrames() {
+    if (rendered == null) {
+      List<Types.StackFrame> ret = new ArrayList<>(frames.size());
+      Map<String, Types.Source> sources = new HashMap<>();
+      for (int i = frames.size() - 1; i >= 0; i--) {
+        StackFrame s = frames.get(i);
+        Types.Source source = sources.get(s.systemId);
+        if (source == null) {
+          source = new Types.Source(AdapterUtils.convertPath(s.systemId, true, false), 0);
+          sources.put(s.systemId, source);
+        }
+        ret.add(new Types.StackFrame((int) s.getId(), s.construct.replace("{http://www.w3.org/1999/XSL/Transform}", "xsl:"),
+            source, AdapterUtils.convertLineNumber(s.lineNumber, true, true), s.columnNumber));
+      }
+      rendered = Collections.unmodifiableList(ret);
+    }
+    return rendered;
+  }
+
+  /** The frame with the given id, or the innermost frame if there is no such frame */
+  public StackFrame getFrame(long frameId) {
+    Variable frame = variablesPool.getById(frameId);
+    if (frame instanceof StackFrame) {
+      return (StackFrame) frame;
+    }
+    return frames.isEmpty() ? null : frames.get(frames.size() - 1);
+  }
+
+  /**
+   * The response to a VARIABLES request: the children of the variable, or the
+   * variables of the frame, with the given reference.
+   */
+  public List<Types.Variable> getRenderedVariables(final long reference, final int start, final int count) {
+    String key = reference + ":" + start + ":" + count;
+    FutureTask<List<Types.Variable>> task = renderedVariables.get(key);
+    if (task == null) {
+      FutureTask<List<Types.Variable>> created = newRenderTask(reference, start, count);
+      task = renderedVariables.putIfAbsent(key, created);
+      if (task == null) {
+        task = created;
+      }
+    }
+    while (true) {
+      // Does nothing if another thread has run it or is running it
+      task.run();
+      try {
+        return task.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new CancellationException();
+      } catch (ExecutionException e) {
+        if (!(e.getCause() instanceof CancellationException)) {
+          if (e.getCause() instanceof RuntimeException) {
+            throw (RuntimeException) e.getCause();
+          }
+          throw new IllegalStateException(e.getCause());
+        }
+        // The prefetch was cancelled half way. Unless this request was too, it
+        // renders the variables again, and so does whoever asks after it.
+        RequestCancellation.check();
+        FutureTask<List<Types.Variable>> fresh = newRenderTask(reference, start, count);
+        task = renderedVariables.replace(key, task, fresh) ? fresh : renderedVariables.get(key);
+      }
+    }
+  }
+
+  private FutureTask<List<Types.Variable>> newRenderTask(final long reference, final int start, final int count) {
+    return new FutureTask<>(new Callable<List<Types.Variable>>() {
+      @Override
+      public List<Types.Variable> call() {
+        return renderVariables(reference, start, count);
+      }
+    });
+  }
+
+  private List<Types.Variable> renderVariables(long reference, int start, int count) {
+    List<Types.Variable> vars = new ArrayList<>();
+    // Frame ids (aka the variablesReference of their scope) live in the same pool
+    Variable v = variablesPool.getById(reference);
+    if (v != null) {
+      for (Variable child : v.getChildren(start, count)) {
+        vars.add(child.toResponse());
+      }
+    }
+    return vars;
+  }
+
+  /**
+   * Renders the stack, the variables of the innermost frame and the first
+   * page of their children, which is what the client asks for after every
+   * stop. Runs until {@link #cancelPrefetch} is called.
+   */
+  void prefetch(Executor executor) {
+    if (frames.isEmpty()) {
+      return;
+    }
+    final StackFrame top = frames.get(frames.size() - 1);
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        RequestCancellation.begin(prefetchCancelled);
+        try {
+          getRenderedFrames();
+          for (Types.Variable v : getRenderedVariables(top.getId(), 0, 0)) {
+            RequestCancellation.check();
+            Variable child = variablesPool.getById(v.variablesReference);
+            if (child == null) {
+              continue;
+            }
+            if (!(child.getGroundedValue() instanceof NodeInfo)) {
+              // A short sequence is fetched whole, a long one a page at a time
+              getRenderedVariables(v.variablesReference, 0, v.indexedVariables > PREFETCH_PAGE ? PREFETCH_PAGE : 0);
+            } else if (!child.hasChildrenAfter(PREFETCH_PAGE)) {
+              // The children of a node are fetched whole, so only if there are few
+              getRenderedVariables(v.variablesReference, 0, 0);
+            }
+          }
+        } catch (CancellationException e) {
+          // Resumed before the client needed them
+        } finally {
+          RequestCancellation.end();
+        }
+      }
+    });
+  }
+
+  /** Stops the prefetch, if it is still running */
+  void cancelPrefetch() {
+    prefetchCancelled.set(true);
+  }
+}
@@ -1,15 +1,26 @@
 package com.philschatz.xslt;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.google.gson.JsonObject;
 import com.microsoft.java.debug.core.adapter.AdapterUtils;
 import com.microsoft.java.debug.core.adapter.ErrorCode;
 import com.microsoft.java.debug.core.protocol.AbstractProtocolServer;
@@ -24,6 +35,7 @@ import net.sf.saxon.om.GroundedValue;
 import net.sf.saxon.om.NodeInfo;
 import net.sf.saxon.om.Sequence;
 import net.sf.saxon.om.SequenceIterator;
+import net.sf.saxon.s9api.SaxonApiException;
 import net.sf.saxon.trans.XPathException;
 import net.sf.saxon.type.Type;
 import net.sf.saxon.value.StringValue;
@@ -35,30 +47,66 @@ import com.microsoft.java.debug.core.protocol.Types;
 
 public class ProtocolServer extends AbstractProtocolServer {
   private static final Logger logger = Logger.getLogger("xslt-debug");
+  // Requests that can take a while on a big value. They are handled off the
+  // connection thread, in order for each DAP thread, so continue, disconnect
+  // and cancel are answered right away. Everything else is handled inline.
+  private static final Set<String> BACKGROUND_COMMANDS = new HashSet<>(
+      Arrays.asList("stackTrace", "scopes", "variables", "evaluate", "outputProvenance", "resources"));
   private Map<Command, IDebugRequestHandler> requestHandlers = new HashMap<Command, IDebugRequestHandler>();
-  private DebugContext debugContext = new DebugContext(this);
+  private Map<Command, Class<? extends Arguments>> argumentTypes = new HashMap<Command, Class<? extends Arguments>>();
+  // Requests that are not part of the Command enum, keyed by their name
+  private Map<String, IDebugRequestHandler> customHandlers = new HashMap<String, IDebugRequestHandler>();
+  private Map<String, Class<? extends Arguments>> customArgumentTypes = new HashMap<String, Class<? extends Arguments>>();
+  private final DebugContext debugContext;
+  private final MessageWriter messages;
+  private final ExecutorService requests = Executors.newCachedThreadPool(Threads.daemonThreads("Xslt Debug Requests"));
+  // The background requests about one DAP thread are answered in order, but a
+  // slow one does not hold up the requests about other threads
+  private final ConcurrentHashMap<Long, SerialExecutor> requestQueues = new ConcurrentHashMap<>();
+  // The background requests that have not been answered yet, by seq
+  private final Map<Integer, AtomicBoolean> pending = new ConcurrentHashMap<>();
 
   public ProtocolServer(InputStream input, OutputStream output) {
+    this(input, output, new StylesheetCache());
+  }
+
+  public ProtocolServer(InputStream input, OutputStream output, StylesheetCache stylesheets) {
     super(input, output);
+    debugContext = new DebugContext(this, stylesheets);
+    messages = output == null ? null : new MessageWriter(output);
 
+    argumentTypes.put(Command.INITIALIZE, XSLTRequests.InitializeArguments.class);
     registerHandler(Command.INITIALIZE, new IDebugRequestHandler() {
       @Override
       public Response handle(Command command, Arguments arguments, Response response, DebugContext context) {
-        Types.Capabilities caps = new Types.Capabilities();
+        context.setClientSupportsProgress(((XSLTRequests.InitializeArguments) arguments).supportsProgressReporting);
+        XSLTResponses.Capabilities caps = new XSLTResponses.Capabilities();
         caps.supportsConfigurationDoneRequest = true;
         caps.supportsEvaluateForHovers = true;
         caps.supportsDataBreakpoints = true;
+        caps.supportsCancelRequest = true;
         response.body = caps;
         context.getProtocolServer().sendEvent(new Events.InitializedEvent());
         return response;
       }
     });
 
+    argumentTypes.put(Command.LAUNCH, XSLTLaunchArguments.class);
     registerHandler(Command.LAUNCH, new IDebugRequestHandler() {
       @Override
       public Response handle(Command command, Arguments arguments, Response response, DebugContext context) {
-        Requests.LaunchArguments args = (Requests.LaunchArguments) arguments;
+        XSLTLaunchArguments args = (XSLTLaunchArguments) arguments;
+        if (context.hasActiveRuns()) {
+          return AdapterUtils.createAsyncErrorResponse(response, ErrorCode.UNKNOWN_FAILURE,
+              "The previous launch is still running").join();
+        }
+        context.setLaunchArguments(args);
         context.createTransformer(args.classPaths[0], args.classPaths[1], args.classPaths[2]);
+        if (args.inputs != null) {
+          for (XSLTLaunchArguments.Input input : args.inputs) {
+            context.createTransformer(args.classPaths[0], input.source, input.destination);
+          }
+        }
         return response; // or null
       }
     });
@@ -74,7 +122,7 @@ public class ProtocolServer extends AbstractProtocolServer {
           bs.add(new XSLTBreakpoint(args.source.path, b.line + 1));
           res.add(new Types.Breakpoint(false));
         }
-        context.addBreakpoints(bs);
+        context.setBreakpoints(args.source.path, bs);
 
         response.body = new Responses.SetBreakpointsResponseBody(res);
         return response;
@@ -93,7 +141,9 @@ public class ProtocolServer extends AbstractProtocolServer {
       @Override
       public Response handle(Command command, Arguments arguments, Response response, DebugContext context) {
         List<Types.Thread> res = new ArrayList<>();
-        res.add(new Types.Thread(1, "lonely"));
+        for (DebugRun run : context.getRuns()) {
+          res.add(new Types.Thread(run.getThreadId(), run.getName()));
+        }
         response.body = new Responses.ThreadsResponseBody(res);
         return response;
       }
@@ -102,17 +152,15 @@ public class ProtocolServer extends AbstractProtocolServer {
     registerHandler(Command.STACKTRACE, new IDebugRequestHandler() {
       @Override
       public Response handle(Command command, Arguments arguments, Response response, DebugContext context) {
-        ArrayList<Types.StackFrame> stack = new ArrayList<>();
-        int id = 0;
-        for (StackFrame s : context.getStackFrames()) {
-          stack.add(0,
-              new Types.StackFrame(id, s.construct.replace("{http://www.w3.org/1999/XSL/Transform}", "xsl:"),
-                  new Types.Source(AdapterUtils.convertPath(s.systemId, true, false), 0),
-                  AdapterUtils.convertLineNumber(s.lineNumber, true, true), s.columnNumber));
-          id++;
-        }
+        Requests.StackTraceArguments args = (Requests.StackTraceArguments) arguments;
+        DebugRun run = context.getRun(args.threadId);
+        List<Types.StackFrame> frames = run == null ? new ArrayList<Types.StackFrame>()
+            : run.getSnapshot().getRenderedFrames();
+        int start = Math.min(Math.max(args.startFrame, 0), frames.size());
+        int end = args.levels > 0 ? Math.min(frames.size(), start + args.levels) : frames.size();
 
-        response.body = new Responses.StackTraceResponseBody(stack, stack.size());
+        response.body = new Responses.StackTraceResponseBody(new ArrayList<>(frames.subList(start, end)),
+            frames.size());
         return response;
       }
     });
@@ -127,6 +175,10 @@ public class ProtocolServer extends AbstractProtocolServer {
         List<Types.Scope> scopes = new ArrayList<>();
         int variablesReference = args.frameId;
         scopes.add(new Types.Scope("Local", variablesReference, false));
+        GlobalScope globals = context.getSnapshot(variablesReference).globals;
+        if (globals != null) {
+          scopes.add(new Types.Scope("Global", (int) globals.getId(), false));
+        }
         // scopes.add(new Types.Scope("Tunneled", TUNNELED_VARIABLES, true));
         response.body = new Responses.ScopesResponseBody(scopes);
         return response;
@@ -137,32 +189,37 @@ public class ProtocolServer extends AbstractProtocolServer {
       @Override
       public Response handle(Command command, Arguments arguments, Response response, DebugContext context) {
         Requests.VariablesArguments args = (Requests.VariablesArguments) arguments;
-        List<Types.Variable> vars = new ArrayList<>();
-
-        if (args.variablesReference < 1000) {
-          List<StackFrame> fs = context.getStackFrames();
-          StackFrame s = fs.get(args.variablesReference); // use the frameId (aka variablesReference)
-  
-          for (Variable v : s.variables) {
-            vars.add(v.toResponse());
-          }
-          
-        } else {
-          Variable v = context.getVariableById(args.variablesReference);
-          for (Variable child : v.getChildren()) {
-            vars.add(child.toResponse());
-          }
-        }
+        PauseSnapshot snapshot = context.getSnapshot(args.variablesReference);
+        List<Types.Variable> vars = snapshot.getRenderedVariables(args.variablesReference, args.start, args.count);
         response.body = new Responses.VariablesResponseBody(vars);
         return response;
       }
     });
 
+    registerHandler(Command.EVALUATE, new IDebugRequestHandler() {
+      @Override
+      public Response handle(Command command, Arguments arguments, Response response, DebugContext context) {
+        Requests.EvaluateArguments args = (Requests.EvaluateArguments) arguments;
+        try {
+          Types.Variable result = context.evaluate(args.expression, args.frameId).toResponse();
+          response.body = new Responses.EvaluateResponseBody(result.value, result.variablesReference, result.type,
+              result.indexedVariables);
+          return response;
+        } catch (SaxonApiException e) {
+          return AdapterUtils.createAsyncErrorResponse(response, ErrorCode.EVALUATE_FAILURE, e.getMessage()).join();
+        }
+      }
+    });
+
     registerHandler(Command.CONTINUE, new IDebugRequestHandler() {
       @Override
       public Response handle(Command command, Arguments arguments, Response response, DebugContext context) {
-        context.unpause();
-        response.body = new Responses.ContinueResponseBody();
+        Requests.ContinueArguments args = (Requests.ContinueArguments) arguments;
+        DebugRun run = context.getRun(args.threadId);
+        if (run != null) {
+          run.unpause();
+        }
+        response.body = new Responses.ContinueResponseBody(false);
         return response;
       }
     });
@@ -171,6 +228,84 @@ public class ProtocolServer extends AbstractProtocolServer {
       @Override
       public Response handle(Command command, Arguments arguments, Response response, DebugContext context) {
         context.stop();
+        for (AtomicBoolean cancelled : pending.values()) {
+          cancelled.set(true);
+        }
+        requests.shutdown();
+        return response;
+      }
+    });
+
+    registerCustomHandler("outputPreview", XSLTRequests.OutputPreviewArguments.class, new IDebugRequestHandler() {
+      @Override
+      public Response handle(Command command, Arguments arguments, Response response, DebugContext context) {
+        XSLTRequests.OutputPreviewArguments args = (XSLTRequests.OutputPreviewArguments) arguments;
+        DebugRun run = context.getRun(args.threadId);
+        OutputPreview preview = run == null ? null : run.getPreview();
+        if (preview == null) {
+          return AdapterUtils.createAsyncErrorResponse(response, ErrorCode.UNKNOWN_FAILURE,
+              "No output preview. Launch with \"preview\": true").join();
+        }
+        response.body = new XSLTResponses.OutputPreviewResponseBody(preview.read(args.since));
+        return response;
+      }
+    });
+
+    registerCustomHandler("resources", XSLTRequests.ResourcesArguments.class, new IDebugRequestHandler() {
+      @Override
+      public Response handle(Command command, Arguments arguments, Response response, DebugContext context) {
+        XSLTRequests.ResourcesArguments args = (XSLTRequests.ResourcesArguments) arguments;
+        DebugRun run = context.getRun(args.threadId);
+        ResourceReport resources = run == null ? null : run.getResources();
+        if (resources == null) {
+          return AdapterUtils.createAsyncErrorResponse(response, ErrorCode.UNKNOWN_FAILURE,
+              "No resources recorded. Launch with \"resources\": true").join();
+        }
+        // Saxon's document pool and key indexes may only be read while nothing changes them,
+        // so they are read on the paused transform thread
+        if (!run.isPaused()) {
+          return AdapterUtils.createAsyncErrorResponse(response, ErrorCode.UNKNOWN_FAILURE,
+              "Resources can only be listed while the run is paused").join();
+        }
+        try {
+          response.body = run.collectResources();
+        } catch (XPathException e) {
+          return AdapterUtils.createAsyncErrorResponse(response, ErrorCode.UNKNOWN_FAILURE, e.getMessage()).join();
+        }
+        return response;
+      }
+    });
+
+    registerCustomHandler("cancel", XSLTRequests.CancelArguments.class, new IDebugRequestHandler() {
+      @Override
+      public Response handle(Command command, Arguments arguments, Response response, DebugContext context) {
+        XSLTRequests.CancelArguments args = (XSLTRequests.CancelArguments) arguments;
+        // A request that already finished (or was never slow) has nothing to cancel
+        AtomicBoolean cancelled = args.requestId == null ? null : pending.get(args.requestId);
+        if (cancelled != null) {
+          cancelled.set(true);
+        }
+        return response;
+      }
+    });
+
+    registerCustomHandler("outputProvenance", XSLTRequests.OutputProvenanceArguments.class, new IDebugRequestHandler() {
+      @Override
+      public Response handle(Command command, Arguments arguments, Response response, DebugContext context) {
+        XSLTRequests.OutputProvenanceArguments args = (XSLTRequests.OutputProvenanceArguments) arguments;
+        DebugRun run = context.getRun(args.threadId);
+        ProvenanceIndex index = run == null ? null : run.getProvenanceIndex();
+        if (index == null) {
+          return AdapterUtils.createAsyncErrorResponse(response, ErrorCode.UNKNOWN_FAILURE,
+              "No output provenance recorded. Launch with \"provenance\": true and wait for the transform to finish")
+              .join();
+        }
+        int chunk = index.find(args.line, args.column);
+        if (chunk < 0) {
+          return AdapterUtils.createAsyncErrorResponse(response, ErrorCode.UNKNOWN_FAILURE,
+              String.format("Nothing was written at %d:%d", args.line, args.column)).join();
+        }
+        response.body = new XSLTResponses.OutputProvenanceResponseBody(index, chunk);
         return response;
       }
     });
@@ -178,18 +313,118 @@ public class ProtocolServer extends AbstractProtocolServer {
   }
 
   @Override
-  protected void dispatchRequest(Messages.Request request) {
+  public void sendResponse(Messages.Response response) {
+    if (messages == null) {
+      super.sendResponse(response);
+      return;
+    }
+    try {
+      messages.writeResponse(response);
+    } catch (IOException e) {
+      logger.log(Level.SEVERE, String.format("Write response exception: %s", e.toString()), e);
+    }
+  }
+
+  @Override
+  public void sendEvent(Events.DebugEvent event) {
+    if (messages == null) {
+      super.sendEvent(event);
+      return;
+    }
+    try {
+      messages.writeEvent(event);
+    } catch (IOException e) {
+      logger.log(Level.SEVERE, String.format("Write event exception: %s", e.toString()), e);
+    }
+  }
+
+  @Override
+  protected void dispatchRequest(final Messages.Request request) {
+    if (!BACKGROUND_COMMANDS.contains(request.command)) {
+      handleRequest(request, null);
+      return;
+    }
+    final AtomicBoolean cancelled = new AtomicBoolean();
+    pending.put(request.seq, cancelled);
+    long threadId = threadOf(request);
+    SerialExecutor queue = requestQueues.get(threadId);
+    if (queue == null) {
+      SerialExecutor created = new SerialExecutor(requests);
+      queue = requestQueues.putIfAbsent(threadId, created);
+      if (queue == null) {
+        queue = created;
+      }
+    }
+    try {
+      queue.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            handleRequest(request, cancelled);
+          } finally {
+            pending.remove(request.seq);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // after a disconnect
+      pending.remove(request.seq);
+      handleRequest(request, null);
+    }
+  }
+
+  /** The DAP thread a request is about, or 0 if it does not say */
+  private long threadOf(Messages.Request request) {
+    JsonObject args = request.arguments;
+    if (args == null) {
+      return 0;
+    }
+    if (args.has("threadId")) {
+      return args.get("threadId").getAsLong();
+    }
+    if (args.has("frameId")) {
+      return debugContext.getThreadOf(args.get("frameId").getAsLong());
+    }
+    if (args.has("variablesReference")) {
+      return debugContext.getThreadOf(args.get("variablesReference").getAsLong());
+    }
+    return 0;
+  }
+
+  /** @param cancelled set by a "cancel" request, or null if the request cannot be cancelled */
+  private void handleRequest(Messages.Request request, AtomicBoolean cancelled) {
     Messages.Response response = new Messages.Response();
     response.request_seq = request.seq;
     response.command = request.command;
     response.success = true;
 
     Command command = Command.parse(request.command);
-    Arguments cmdArgs = JsonUtils.fromJson(request.arguments, command.getArgumentType());
+    Class<? extends Arguments> argumentType = argumentTypes.containsKey(command) ? argumentTypes.get(command)
+        : command.getArgumentType();
     IDebugRequestHandler handler = requestHandlers.get(command);
+    if (command == Command.UNSUPPORTED && customHandlers.containsKey(request.command)) {
+      argumentType = customArgumentTypes.get(request.command);
+      handler = customHandlers.get(request.command);
+    }
+    Arguments cmdArgs = JsonUtils.fromJson(request.arguments, argumentType);
 
-    if (handler != null) {
-      response = handler.handle(command, cmdArgs, response, debugContext);
+    if (cancelled != null && cancelled.get()) {
+      response = cancelledResponse(response);
+    } else if (handler != null) {
+      if (cancelled != null) {
+        RequestCancellation.begin(cancelled);
+      }
+      try {
+        response = handler.handle(command, cmdArgs, response, debugContext);
+      } catch (CancellationException e) {
+        response = cancelledResponse(response);
+      } catch (RuntimeException e) {
+        // Nobody else would report it for a request handled in the background
+        logger.log(Level.SEVERE, String.format("Request %s failed: %s", request.command, e.toString()), e);
+        response = AdapterUtils.createAsyncErrorResponse(response, ErrorCode.UNKNOWN_FAILURE, e.toString()).join();
+      } finally {
+        RequestCancellation.end();
+      }
     } else {
       final String errorMessage = String.format("Unrecognized request: { _request: %s }", request.command);
       logger.log(Level.SEVERE, errorMessage);
@@ -199,10 +434,27 @@ public class ProtocolServer extends AbstractProtocolServer {
     this.sendResponse(response);
   }
 
+  /** What DAP expects back for a cancelled request */
+  private static Messages.Response cancelledResponse(Messages.Response response) {
+    response.success = false;
+    response.message = "cancelled";
+    response.body = null;
+    return response;
+  }
+
   private void registerHandler(Command command, IDebugRequestHandler handler) {
     if (requestHandlers.containsKey(command)) {
       throw new RuntimeException("BUG: Duplicate handler for command. Only supports one for now");
     }
     requestHandlers.put(command, handler);
   }
+
+  private void registerCustomHandler(String command, Class<? extends Arguments> argumentType,
+      IDebugRequestHandler handler) {
+    if (customHandlers.containsKey(command)) {
+      throw new RuntimeException("BUG: Duplicate handler for command. Only supports one for now");
+    }
+    customHandlers.put(command, handler);
+    customArgumentTypes.put(command, argumentType);
+  }
 }
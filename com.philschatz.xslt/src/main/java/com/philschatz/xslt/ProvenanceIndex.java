@@ -0,0 +1,168 @@
+package com.philschatz.xslt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Maps ranges of the serialized output back to the stylesheet instruction and
+ * the source node that produced them.
+ *
+ * Each chunk of output is one entry in a set of parallel arrays, sorted by the
+ * (line, column) where the chunk starts, so looking up an output position is a
+ * binary search. The index is written next to the destination file as
+ * &lt;destination&gt;.provenance.
+ */
+public class ProvenanceIndex {
+  private static final int MAGIC = 0x58505256; // "XPRV"
+  private static final int VERSION = 1;
+
+  /** (line &lt;&lt; 32 | column) where each chunk starts, ascending */
+  final long[] positions;
+  final long[] offsets;
+  /** -1 when the output was not produced inside a traced instruction */
+  final int[] instructions;
+  /** -1 when the context item was not a node */
+  final int[] documents;
+  final int[] sourceLines;
+  final int size;
+
+  final String[] instructionDescriptions;
+  final String[] instructionSystemIds;
+  final int[] instructionLines;
+  final String[] documentSystemIds;
+
+  ProvenanceIndex(long[] positions, long[] offsets, int[] instructions, int[] documents, int[] sourceLines, int size,
+      String[] instructionDescriptions, String[] instructionSystemIds, int[] instructionLines, String[] documentSystemIds) {
+    this.positions = positions;
+    this.offsets = offsets;
+    this.instructions = instructions;
+    this.documents = documents;
+    this.sourceLines = sourceLines;
+    this.size = size;
+    this.instructionDescriptions = instructionDescriptions;
+    this.instructionSystemIds = instructionSystemIds;
+    this.instructionLines = instructionLines;
+    this.documentSystemIds = documentSystemIds;
+  }
+
+  public static long position(int line, int column) {
+    return ((long) line << 32) | (column & 0xFFFFFFFFL);
+  }
+
+  /**
+   * @param line   1-based output line
+   * @param column 0-based output column
+   * @return the chunk covering that position, or -1 if it is before any output
+   */
+  public int find(int line, int column) {
+    long key = position(line, column);
+    int lo = 0;
+    int hi = size - 1;
+    int found = -1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      if (positions[mid] <= key) {
+        found = mid;
+        lo = mid + 1;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    return found;
+  }
+
+  public int size() { return size; }
+  public int getStartLine(int chunk) { return (int) (positions[chunk] >>> 32); }
+  public int getStartColumn(int chunk) { return (int) positions[chunk]; }
+  public long getStartOffset(int chunk) { return offsets[chunk]; }
+  public int getSourceLine(int chunk) { return sourceLines[chunk]; }
+
+  public String getInstructionDescription(int chunk) {
+    return instructions[chunk] < 0 ? null : instructionDescriptions[instructions[chunk]];
+  }
+
+  public String getInstructionSystemId(int chunk) {
+    return instructions[chunk] < 0 ? null : instructionSystemIds[instructions[chunk]];
+  }
+
+  public int getInstructionLine(int chunk) {
+    return instructions[chunk] < 0 ? -1 : instructionLines[instructions[chunk]];
+  }
+
+  public String getSourceSystemId(int chunk) {
+    return documents[chunk] < 0 ? null : documentSystemIds[documents[chunk]];
+  }
+
+  public void write(File file) throws IOException {
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(size);
+      for (int i = 0; i < size; i++) {
+        out.writeLong(positions[i]);
+        out.writeLong(offsets[i]);
+        out.writeInt(instructions[i]);
+        out.writeInt(documents[i]);
+        out.writeInt(sourceLines[i]);
+      }
+      out.writeInt(instructionDescriptions.length);
+      for (int i = 0; i < instructionDescriptions.length; i++) {
+        out.writeUTF(instructionDescriptions[i]);
+        out.writeUTF(String.valueOf(instructionSystemIds[i]));
+        out.writeInt(instructionLines[i]);
+      }
+      out.writeInt(documentSystemIds.length);
+      for (String systemId : documentSystemIds) {
+        out.writeUTF(String.valueOf(systemId));
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  public static ProvenanceIndex read(File file) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException(String.format("Not a provenance index: %s", file));
+      }
+      int size = in.readInt();
+      long[] positions = new long[size];
+      long[] offsets = new long[size];
+      int[] instructions = new int[size];
+      int[] documents = new int[size];
+      int[] sourceLines = new int[size];
+      for (int i = 0; i < size; i++) {
+        positions[i] = in.readLong();
+        offsets[i] = in.readLong();
+        instructions[i] = in.readInt();
+        documents[i] = in.readInt();
+        sourceLines[i] = in.readInt();
+      }
+      int count = in.readInt();
+      String[] descriptions = new String[count];
+      String[] systemIds = new String[count];
+      int[] lines = new int[count];
+      for (int i = 0; i < count; i++) {
+        descriptions[i] = in.readUTF();
+        systemIds[i] = in.readUTF();
+        lines[i] = in.readInt();
+      }
+      String[] documentSystemIds = new String[in.readInt()];
+      for (int i = 0; i < documentSystemIds.length; i++) {
+        documentSystemIds[i] = in.readUTF();
+      }
+      return new ProvenanceIndex(positions, offsets, instructions, documents, sourceLines, size, descriptions, systemIds,
+          lines, documentSystemIds);
+    } finally {
+      in.close();
+    }
+  }
+}
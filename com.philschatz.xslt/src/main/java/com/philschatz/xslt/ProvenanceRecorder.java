@@ -0,0 +1,134 @@
+package com.philschatz.xslt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.om.TreeInfo;
+
+/**
+ * Builds a {@link ProvenanceIndex} while the transform runs. Output written
+ * between two trace events belongs to the instruction on top of the stack at
+ * the time, so every enter() and leave() closes the current chunk if the
+ * output position moved.
+ *
+ * Only used from the transform thread.
+ */
+public class ProvenanceRecorder {
+  private final CountingWriter output;
+  private final InstructionTable instructions;
+
+  private long[] positions = new long[1024];
+  private long[] offsets = new long[1024];
+  private int[] chunkInstructions = new int[1024];
+  private int[] chunkDocuments = new int[1024];
+  private int[] chunkSourceLines = new int[1024];
+  private int size;
+
+  // The instruction (and its context node) that is currently producing output
+  private int[] instructionStack = new int[64];
+  private int[] documentStack = new int[64];
+  private int[] sourceLineStack = new int[64];
+  private int depth;
+
+  private long chunkOffset;
+  private long chunkPosition = ProvenanceIndex.position(1, 0);
+
+  private final IdentityHashMap<TreeInfo, Integer> documentIds = new IdentityHashMap<>();
+  private final List<String> documentSystemIds = new ArrayList<>();
+  private TreeInfo lastTree;
+  private int lastDocument = -1;
+
+  public ProvenanceRecorder(CountingWriter output, InstructionTable instructions) {
+    this.output = output;
+    this.instructions = instructions;
+  }
+
+  public void enter(int instruction, Item contextItem) {
+    closeChunk();
+    if (depth == instructionStack.length) {
+      instructionStack = Arrays.copyOf(instructionStack, depth * 2);
+      documentStack = Arrays.copyOf(documentStack, depth * 2);
+      sourceLineStack = Arrays.copyOf(sourceLineStack, depth * 2);
+    }
+    instructionStack[depth] = instruction;
+    if (contextItem instanceof NodeInfo) {
+      NodeInfo node = (NodeInfo) contextItem;
+      documentStack[depth] = documentOf(node.getTreeInfo());
+      sourceLineStack[depth] = node.getLineNumber();
+    } else {
+      documentStack[depth] = -1;
+      sourceLineStack[depth] = -1;
+    }
+    depth++;
+  }
+
+  public void leave() {
+    closeChunk();
+    if (depth > 0) {
+      depth--;
+    }
+  }
+
+  private int documentOf(TreeInfo tree) {
+    if (tree != lastTree) {
+      Integer id = documentIds.get(tree);
+      if (id == null) {
+        id = documentSystemIds.size();
+        documentSystemIds.add(tree.getRootNode().getSystemId());
+        documentIds.put(tree, id);
+      }
+      lastTree = tree;
+      lastDocument = id;
+    }
+    return lastDocument;
+  }
+
+  private void closeChunk() {
+    long offset = output.getOffset();
+    if (offset == chunkOffset) {
+      return;
+    }
+    if (size == positions.length) {
+      int capacity = size * 2;
+      positions = Arrays.copyOf(positions, capacity);
+      offsets = Arrays.copyOf(offsets, capacity);
+      chunkInstructions = Arrays.copyOf(chunkInstructions, capacity);
+      chunkDocuments = Arrays.copyOf(chunkDocuments, capacity);
+      chunkSourceLines = Arrays.copyOf(chunkSourceLines, capacity);
+    }
+    positions[size] = chunkPosition;
+    offsets[size] = chunkOffset;
+    if (depth > 0) {
+      chunkInstructions[size] = instructionStack[depth - 1];
+      chunkDocuments[size] = documentStack[depth - 1];
+      chunkSourceLines[size] = sourceLineStack[depth - 1];
+    } else {
+      chunkInstructions[size] = -1;
+      chunkDocuments[size] = -1;
+      chunkSourceLines[size] = -1;
+    }
+    size++;
+    chunkOffset = offset;
+    chunkPosition = ProvenanceIndex.position(output.getLine(), output.getColumn());
+  }
+
+  /** Closes the last chunk and freezes what was recorded */
+  public ProvenanceIndex finish() {
+    closeChunk();
+    int count = instructions.size();
+    String[] descriptions = new String[count];
+    String[] systemIds = new String[count];
+    int[] lines = new int[count];
+    for (int i = 0; i < count; i++) {
+      descriptions[i] = instructions.getDescription(i);
+      systemIds[i] = instructions.getSystemId(i);
+      lines[i] = instructions.getLineNumber(i);
+    }
+    return new ProvenanceIndex(positions, offsets, chunkInstructions, chunkDocuments, chunkSourceLines, size,
+        descriptions, systemIds, lines, documentSystemIds.toArray(new String[documentSystemIds.size()]));
+  }
+}
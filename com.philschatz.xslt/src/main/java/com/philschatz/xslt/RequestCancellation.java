@@ -0,0 +1,34 @@
+package com.philschatz.xslt;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Lets the DAP "cancel" request stop a handler that is walking a large value.
+ * The request thread is tied to the flag of the request it is handling, and
+ * the loops over sequences and child nodes call {@link #check()} as they go.
+ * Code that runs outside of a request (e.g. on the transform thread) is never
+ * cancelled.
+ */
+final class RequestCancellation {
+  private static final ThreadLocal<AtomicBoolean> current = new ThreadLocal<>();
+
+  private RequestCancellation() {
+  }
+
+  static void begin(AtomicBoolean cancelled) {
+    current.set(cancelled);
+  }
+
+  static void end() {
+    current.remove();
+  }
+
+  /** @throws CancellationException if the client cancelled the request being handled */
+  static void check() {
+    AtomicBoolean cancelled = current.get();
+    if (cancelled != null && cancelled.get()) {
+      throw new CancellationException();
+    }
+  }
+}
@@ -0,0 +1,269 @@
+package com.philschatz.xslt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.ref.Reference;
+import java.lang.reflect.Field;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.sf.saxon.Controller;
+import net.sf.saxon.PreparedStylesheet;
+import net.sf.saxon.om.DocumentPool;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.om.TreeInfo;
+import net.sf.saxon.s9api.Action;
+import net.sf.saxon.s9api.Destination;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.trans.KeyDefinitionSet;
+import net.sf.saxon.trans.KeyIndex;
+import net.sf.saxon.trans.KeyManager;
+import net.sf.saxon.tree.tiny.TinyTree;
+import net.sf.saxon.z.IntHashMap;
+import net.sf.saxon.z.IntIterator;
+
+/**
+ * What a transform is holding on to: the documents in the document pool, the
+ * xsl:key indexes that were built, and the result documents it wrote. Meant
+ * for finding out whether lookup documents or key indexes are what makes a
+ * transform run out of memory.
+ *
+ * Saxon 9.9 has no public way to list the document pool or the built key
+ * indexes, so those two are read from private fields (and left out if a Saxon
+ * upgrade renames them). The memory figures are estimates based on the
+ * layout of Saxon's tiny tree. How long a key index took to build cannot be
+ * measured: Saxon builds it inside the first key() call, and rebuilding it to
+ * time it would double the memory the report is meant to diagnose, so
+ * buildMillis is always -1.
+ *
+ * The key indexes live on the compiled stylesheet, which is shared by every
+ * run, so only the ones built for this run's documents are reported.
+ */
+public class ResourceReport implements RunReport {
+  private static final Logger logger = Logger.getLogger("xslt-debug");
+
+  // Rough sizes, in bytes, of the tiny tree arrays (including line numbers)
+  // and of the HashMap and List entries of a key index
+  private static final int BYTES_PER_NODE = 27;
+  private static final int BYTES_PER_ATTRIBUTE = 64;
+  private static final int BYTES_PER_NAMESPACE = 16;
+  private static final int BYTES_PER_KEY = 96;
+  private static final int BYTES_PER_KEY_ENTRY = 8;
+
+  private final Processor processor;
+  private final List<XSLTResponses.ResultDocument> resultDocuments = new ArrayList<>();
+  private volatile Controller controller;
+
+  public ResourceReport(Processor processor) {
+    this.processor = processor;
+  }
+
+  void open(Controller controller) {
+    this.controller = controller;
+  }
+
+  /** Lets go of the run's documents and indexes once the report is written */
+  void close() {
+    this.controller = null;
+  }
+
+  /**
+   * Serializes xsl:result-document output the way Saxon would, and records how
+   * long each one was open and how big the file ended up.
+   */
+  public Function<URI, Destination> newResultDocumentHandler() {
+    return new Function<URI, Destination>() {
+      @Override
+      public Destination apply(final URI uri) {
+        final long start = System.nanoTime();
+        final File file = new File(uri);
+        Destination destination = processor.newSerializer(file);
+        destination.onClose(new Action() {
+          @Override
+          public void act() throws SaxonApiException {
+            addResultDocument(uri, file.length(), start);
+          }
+        });
+        return destination;
+      }
+    };
+  }
+
+  /** Records a result document that was just closed, e.g. by the {@link ResultDocumentWriter} */
+  void addResultDocument(URI uri, long bytes, long openedNanos) {
+    XSLTResponses.ResultDocument d = new XSLTResponses.ResultDocument();
+    d.uri = uri.toString();
+    d.bytes = bytes;
+    d.millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - openedNanos);
+    synchronized (resultDocuments) {
+      resultDocuments.add(d);
+    }
+  }
+
+  /** Only call this while the transform is paused or has just ended; Saxon's maps are not thread-safe */
+  public XSLTResponses.ResourcesResponseBody collect() {
+    XSLTResponses.ResourcesResponseBody body = new XSLTResponses.ResourcesResponseBody();
+    Controller c = controller;
+    if (c == null) {
+      return body;
+    }
+    Map<TreeInfo, String> documents = getDocuments(c);
+    for (Map.Entry<TreeInfo, String> document : documents.entrySet()) {
+      body.documents.add(describe(document.getKey(), document.getValue()));
+    }
+    if (c.getExecutable() instanceof PreparedStylesheet) {
+      KeyManager keys = ((PreparedStylesheet) c.getExecutable()).getTopLevelPackage().getKeyManager();
+      addKeyIndexes(body, keys, documents);
+    }
+    synchronized (resultDocuments) {
+      body.resultDocuments.addAll(resultDocuments);
+    }
+    return body;
+  }
+
+  /** The documents in the pool plus the principal source document */
+  @SuppressWarnings("unchecked")
+  private static Map<TreeInfo, String> getDocuments(Controller c) {
+    Map<TreeInfo, String> documents = new IdentityHashMap<>();
+    Item<?> global = c.getGlobalContextItem();
+    if (global instanceof NodeInfo) {
+      TreeInfo tree = ((NodeInfo) global).getTreeInfo();
+      documents.put(tree, String.valueOf(tree.getRootNode().getSystemId()));
+    }
+    DocumentPool pool = c.getDocumentPool();
+    Map<Object, TreeInfo> loaded = (Map<Object, TreeInfo>) readField(pool, "documentNameMap");
+    if (loaded != null) {
+      synchronized (pool) {
+        for (Map.Entry<Object, TreeInfo> e : loaded.entrySet()) {
+          documents.put(e.getValue(), e.getKey().toString());
+        }
+      }
+    }
+    return documents;
+  }
+
+  private static XSLTResponses.Document describe(TreeInfo tree, String uri) {
+    XSLTResponses.Document d = new XSLTResponses.Document();
+    d.uri = uri;
+    if (tree instanceof TinyTree) {
+      TinyTree tiny = (TinyTree) tree;
+      d.nodes = tiny.getNumberOfNodes();
+      d.attributes = tiny.getNumberOfAttributes();
+      d.approximateBytes = approximateBytes(tiny);
+    } else {
+      d.nodes = -1;
+      d.attributes = -1;
+      d.approximateBytes = -1;
+    }
+    return d;
+  }
+
+  static long approximateBytes(TinyTree tiny) {
+    return (long) tiny.getNumberOfNodes() * BYTES_PER_NODE + (long) tiny.getNumberOfAttributes() * BYTES_PER_ATTRIBUTE
+        + (long) tiny.getNumberOfNamespaces() * BYTES_PER_NAMESPACE + 2L * tiny.getCharacterBuffer().length();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static void addKeyIndexes(XSLTResponses.ResourcesResponseBody body, KeyManager keys,
+      Map<TreeInfo, String> documents) {
+    IntHashMap<KeyDefinitionSet> sets = new IntHashMap<>();
+    for (KeyDefinitionSet set : keys.getAllKeyDefinitionSets()) {
+      sets.put(set.getKeySetNumber(), set);
+    }
+    Map<TreeInfo, Reference<IntHashMap<KeyIndex>>> shared = (Map<TreeInfo, Reference<IntHashMap<KeyIndex>>>) readField(
+        keys, "docIndexes");
+    if (shared == null) {
+      return;
+    }
+    synchronized (keys) {
+      for (Map.Entry<TreeInfo, Reference<IntHashMap<KeyIndex>>> e : shared.entrySet()) {
+        // Other runs of the same stylesheet, in this session or another one
+        String uri = documents.get(e.getKey());
+        IntHashMap<KeyIndex> indexes = e.getValue().get();
+        if (uri == null || indexes == null) {
+          continue;
+        }
+        IntIterator numbers = indexes.keyIterator();
+        while (numbers.hasNext()) {
+          int number = numbers.next();
+          body.keyIndexes.add(describe(sets.get(number), indexes.get(number), uri));
+        }
+      }
+    }
+  }
+
+  private static XSLTResponses.KeyIndexInfo describe(KeyDefinitionSet set, KeyIndex index, String uri) {
+    XSLTResponses.KeyIndexInfo k = new XSLTResponses.KeyIndexInfo();
+    k.name = set == null ? "?" : set.getKeyName().getDisplayName();
+    k.document = uri;
+    Map<?, List<NodeInfo>> map = index.getUnderlyingMap();
+    k.keys = map.size();
+    for (List<NodeInfo> nodes : map.values()) {
+      k.entries += nodes.size();
+    }
+    k.approximateBytes = k.keys * BYTES_PER_KEY + k.entries * BYTES_PER_KEY_ENTRY;
+    k.buildMillis = -1;
+    return k;
+  }
+
+  private static Object readField(Object o, String name) {
+    try {
+      Field f = o.getClass().getDeclaredField(name);
+      f.setAccessible(true);
+      return f.get(o);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      logger.log(Level.INFO, String.format("Cannot read %s.%s: %s", o.getClass().getName(), name, e.toString()));
+      return null;
+    }
+  }
+
+  /** @return a short summary for the debug console */
+  @Override
+  public String writeReport(File reportFile) throws IOException {
+    XSLTResponses.ResourcesResponseBody body = collect();
+    long documentBytes = 0;
+    for (XSLTResponses.Document d : body.documents) {
+      documentBytes += Math.max(0, d.approximateBytes);
+    }
+    long keyBytes = 0;
+    for (XSLTResponses.KeyIndexInfo k : body.keyIndexes) {
+      keyBytes += k.approximateBytes;
+    }
+    String summary = String.format("Resources: %d documents (~%dKB), %d key indexes (~%dKB), %d result documents%n",
+        body.documents.size(), documentBytes / 1024, body.keyIndexes.size(), keyBytes / 1024,
+        body.resultDocuments.size());
+
+    PrintWriter out = new PrintWriter(reportFile, "UTF-8");
+    try {
+      out.println(summary.trim());
+      out.println();
+      out.println("nodes\tattributes\t~bytes\tdocument");
+      for (XSLTResponses.Document d : body.documents) {
+        out.println(String.format("%d\t%d\t%d\t%s", d.nodes, d.attributes, d.approximateBytes, d.uri));
+      }
+      out.println();
+      out.println("keys\tentries\t~bytes\tkey\tdocument");
+      for (XSLTResponses.KeyIndexInfo k : body.keyIndexes) {
+        out.println(String.format("%d\t%d\t%d\t%s\t%s", k.keys, k.entries, k.approximateBytes, k.name, k.document));
+      }
+      out.println();
+      out.println("bytes\tms\tresult document");
+      for (XSLTResponses.ResultDocument d : body.resultDocuments) {
+        out.println(String.format("%d\t%d\t%s", d.bytes, d.millis, d.uri));
+      }
+    } finally {
+      out.close();
+    }
+    return summary;
+  }
+}
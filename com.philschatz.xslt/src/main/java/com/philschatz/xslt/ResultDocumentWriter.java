@@ -0,0 +1,295 @@
+package com.philschatz.xslt;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.sf.saxon.s9api.Action;
+import net.sf.saxon.s9api.Destination;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.Serializer;
+
+/**
+ * Writes xsl:result-document output on a few writer threads, so a transform
+ * that splits its output into thousands of files does not wait for the disk.
+ *
+ * Saxon still serializes on the transform thread, into chunks that are handed
+ * to a writer as they fill up and written with a FileChannel. All the chunks
+ * of a file go to the same writer, which keeps them in order; different files
+ * are written in parallel. The chunks that are not written yet are capped: when
+ * the writers fall behind, the transform thread waits for a chunk to be freed.
+ */
+public class ResultDocumentWriter {
+  private static final Logger logger = Logger.getLogger("xslt-debug");
+  static final int CHUNK_BYTES = 64 * 1024;
+  // How long finish() waits for the writers, e.g. on a network drive that hangs
+  static final long FINISH_TIMEOUT_SECONDS = 60;
+
+  private final Processor processor;
+  private final ResourceReport resources;
+  private final ExecutorService[] writers;
+  // One permit for every chunk that may be filled or waiting to be written
+  private final Semaphore chunks;
+  private final ConcurrentLinkedQueue<byte[]> free = new ConcurrentLinkedQueue<>();
+  private final Set<Target> open = Collections.newSetFromMap(new ConcurrentHashMap<Target, Boolean>());
+  private final AtomicReference<IOException> failure = new AtomicReference<>();
+  private final AtomicLong files = new AtomicLong();
+  private final AtomicLong bytes = new AtomicLong();
+  // Only touched by the transform thread
+  private long waitedNanos;
+  private int nextWriter;
+
+  /**
+   * @param resources also told about every result document, if not null
+   */
+  public ResultDocumentWriter(Processor processor, int threads, long bufferBytes, ResourceReport resources) {
+    this.processor = processor;
+    this.resources = resources;
+    this.chunks = new Semaphore((int) Math.max(1, Math.min(Integer.MAX_VALUE, bufferBytes / CHUNK_BYTES)));
+    ThreadFactory factory = Threads.daemonThreads("Xslt Result Document Writer");
+    writers = new ExecutorService[Math.max(1, threads)];
+    for (int i = 0; i < writers.length; i++) {
+      writers[i] = Executors.newSingleThreadExecutor(factory);
+    }
+  }
+
+  /** For Xslt30Transformer.setResultDocumentHandler(); called by the transform thread */
+  public Function<URI, Destination> newResultDocumentHandler() {
+    return new Function<URI, Destination>() {
+      @Override
+      public Destination apply(final URI uri) {
+        final long start = System.nanoTime();
+        final ChunkedOutputStream out = new ChunkedOutputStream(new Target(Paths.get(uri)), writers[nextWriter]);
+        nextWriter = (nextWriter + 1) % writers.length;
+        Serializer destination = processor.newSerializer(out);
+        destination.onClose(new Action() {
+          @Override
+          public void act() {
+            out.close();
+            if (resources != null) {
+              resources.addResultDocument(uri, out.count, start);
+            }
+          }
+        });
+        return destination;
+      }
+    };
+  }
+
+  /**
+   * Waits for every file to be written and stops the writer threads. Gives up
+   * after {@link #FINISH_TIMEOUT_SECONDS}, which counts as an error.
+   *
+   * @return the first error writing a file, or null
+   */
+  public IOException finish() {
+    for (ExecutorService writer : writers) {
+      writer.shutdown();
+    }
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(FINISH_TIMEOUT_SECONDS);
+    try {
+      for (ExecutorService writer : writers) {
+        if (!writer.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+          writer.shutdownNow();
+          failure.compareAndSet(null, new IOException(
+              String.format("Result documents were still being written after %ds", FINISH_TIMEOUT_SECONDS)));
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    // Files Saxon never closed, e.g. because the transform failed half way
+    for (Target target : open) {
+      target.close();
+    }
+    return failure.get();
+  }
+
+  /** A short summary for the debug console */
+  public String getSummary() {
+    return String.format("Wrote %d result documents (%d bytes) on %d threads; the transform waited %dms for them%n",
+        files.get(), bytes.get(), writers.length, TimeUnit.NANOSECONDS.toMillis(waitedNanos));
+  }
+
+  private byte[] takeChunk() throws IOException {
+    if (!chunks.tryAcquire()) {
+      long start = System.nanoTime();
+      try {
+        chunks.acquire();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      }
+      waitedNanos += System.nanoTime() - start;
+    }
+    byte[] chunk = free.poll();
+    return chunk == null ? new byte[CHUNK_BYTES] : chunk;
+  }
+
+  private void recycle(byte[] chunk) {
+    free.add(chunk);
+    chunks.release();
+  }
+
+  /** The file a result document goes to; only used by the writer thread it was given to */
+  private class Target {
+    final Path path;
+    FileChannel channel;
+    boolean failed;
+
+    Target(Path path) {
+      this.path = path;
+    }
+
+    void write(byte[] chunk, int length) {
+      if (failed) {
+        return;
+      }
+      try {
+        if (channel == null) {
+          open();
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, length);
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+        bytes.addAndGet(length);
+      } catch (IOException e) {
+        fail(e);
+      }
+    }
+
+    void open() throws IOException {
+      if (path.getParent() != null) {
+        Files.createDirectories(path.getParent());
+      }
+      channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+          StandardOpenOption.TRUNCATE_EXISTING);
+      ResultDocumentWriter.this.open.add(this);
+    }
+
+    void close() {
+      try {
+        if (channel == null && !failed) {
+          // Nothing was written, but the file is still expected to exist
+          open();
+        }
+        if (channel != null) {
+          channel.close();
+          files.incrementAndGet();
+        }
+      } catch (IOException e) {
+        fail(e);
+      } finally {
+        ResultDocumentWriter.this.open.remove(this);
+      }
+    }
+
+    private void fail(IOException e) {
+      failed = true;
+      logger.log(Level.WARNING, String.format("Cannot write %s", path), e);
+      failure.compareAndSet(null, new IOException(String.format("Cannot write %s: %s", path, e.getMessage()), e));
+    }
+  }
+
+  /** Filled by the serializer on the transform thread; every full chunk goes to the writer */
+  private class ChunkedOutputStream extends OutputStream {
+    private final Target target;
+    private final ExecutorService writer;
+    private byte[] chunk;
+    private int length;
+    private boolean closed;
+    long count;
+
+    ChunkedOutputStream(Target target, ExecutorService writer) {
+      this.target = target;
+      this.writer = writer;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (chunk == null) {
+        chunk = takeChunk();
+      } else if (length == chunk.length) {
+        handOff();
+        chunk = takeChunk();
+      }
+      chunk[length++] = (byte) b;
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        if (chunk == null) {
+          chunk = takeChunk();
+        } else if (length == chunk.length) {
+          handOff();
+          chunk = takeChunk();
+        }
+        int n = Math.min(len, chunk.length - length);
+        System.arraycopy(b, off, chunk, length, n);
+        length += n;
+        off += n;
+        len -= n;
+        count += n;
+      }
+    }
+
+    private void handOff() {
+      final byte[] full = chunk;
+      final int n = length;
+      chunk = null;
+      length = 0;
+      writer.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            target.write(full, n);
+          } finally {
+            recycle(full);
+          }
+        }
+      });
+    }
+
+    /** Hands off what is left; the file is closed once it has been written */
+    @Override
+    public void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      if (chunk != null) {
+        handOff();
+      }
+      writer.execute(new Runnable() {
+        @Override
+        public void run() {
+          target.close();
+        }
+      });
+    }
+  }
+}
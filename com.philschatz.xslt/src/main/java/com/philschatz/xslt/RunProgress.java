@@ -0,0 +1,94 @@
+package com.philschatz.xslt;
+
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.saxon.expr.instruct.TemplateRule;
+import net.sf.saxon.trace.InstructionInfo;
+
+/**
+ * How far a run has got, shown to the client as DAP progress events so a long
+ * run is not silent until it stops or ends.
+ *
+ * The transform thread only publishes its counts every few thousand
+ * instructions (see {@link XSLTDebugTraceListener}); a timer thread turns
+ * them into a progressStart event after the first interval, a progressUpdate
+ * every interval after that, and a progressEnd when the run is over. The
+ * transform thread never does any I/O for this.
+ */
+public class RunProgress {
+  private final ProtocolServer server;
+  private final String progressId;
+  private final String title;
+  private final Path stylesheetDirectory;
+  private ScheduledExecutorService timer;
+  private boolean started;
+
+  private volatile long instructions;
+  private volatile long items;
+  private volatile InstructionInfo component;
+  private volatile TemplateRule rule;
+
+  public RunProgress(ProtocolServer server, DebugRun run) {
+    this.server = server;
+    this.progressId = "run-" + run.getThreadId();
+    this.title = "Running " + run.getName();
+    this.stylesheetDirectory = InstructionTable.directoryOf(run.getContext().getXsltPath());
+  }
+
+  /** Called by the transform thread */
+  void publish(long instructions, long items, InstructionInfo component, TemplateRule rule) {
+    this.instructions = instructions;
+    this.items = items;
+    this.rule = rule;
+    this.component = component;
+  }
+
+  public void start(long intervalMillis) {
+    timer = Executors.newSingleThreadScheduledExecutor(Threads.daemonThreads("Xslt Run Progress"));
+    timer.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        sendEvent();
+      }
+    }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /** Ends the progress, if the client was told it started */
+  public void stop() {
+    if (timer == null) {
+      return;
+    }
+    timer.shutdown();
+    try {
+      timer.awaitTermination(1, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    timer = null;
+    if (started) {
+      server.sendEvent(new XSLTEvents.ProgressEndEvent(progressId,
+          String.format("%,d instructions, %,d items", instructions, items)));
+    }
+  }
+
+  private void sendEvent() {
+    InstructionInfo in = component;
+    TemplateRule r = rule;
+    // Published together, but read one at a time
+    if (r != null && r.getBody() != in) {
+      r = null;
+    }
+    String message = String.format("%,d instructions, %,d items%s", instructions, items,
+        in == null ? "" : ", in " + InstructionTable.getDisplayName(in.getConstructType()) + " "
+            + InstructionTable.describeComponent(in, r, stylesheetDirectory));
+    if (!started) {
+      started = true;
+      server.sendEvent(new XSLTEvents.ProgressStartEvent(progressId, title, message));
+    } else {
+      server.sendEvent(new XSLTEvents.ProgressUpdateEvent(progressId, message));
+    }
+  }
+}
@@ -0,0 +1,10 @@
+package com.philschatz.xslt;
+
+import java.io.File;
+import java.io.IOException;
+
+/** An analysis of a run that writes a report next to the destination when the run ends */
+public interface RunReport {
+  /** @return a short summary for the debug console */
+  String writeReport(File reportFile) throws IOException;
+}
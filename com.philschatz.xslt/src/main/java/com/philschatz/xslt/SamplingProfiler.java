@@ -0,0 +1,167 @@
+package com.philschatz.xslt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically looks at which instruction the transform is running instead of
+ * timing every instruction. The transform thread only maintains the stack of
+ * instruction ids (see {@link XSLTDebugTraceListener#getSampledStack()}); this
+ * class reads it from its own thread, so the reads are racy by design. A torn
+ * sample is just a slightly wrong sample.
+ */
+public class SamplingProfiler implements Runnable {
+  private final XSLTDebugTraceListener listener;
+  private final InstructionTable instructions;
+  private final long intervalMicros;
+  private ScheduledExecutorService timer;
+
+  // Only touched by the sampler thread (and by the report once it has stopped)
+  private long[] self = new long[256];
+  private long[] total = new long[256];
+  private long[] seenInSample = new long[256];
+  private final Map<String, long[]> collapsed = new HashMap<>();
+  private long samples;
+  private long idleSamples;
+
+  public SamplingProfiler(XSLTDebugTraceListener listener, InstructionTable instructions, long intervalMicros) {
+    this.listener = listener;
+    this.instructions = instructions;
+    this.intervalMicros = Math.max(1, intervalMicros);
+  }
+
+  public void start() {
+    timer = Executors.newSingleThreadScheduledExecutor(Threads.daemonThreads("Xslt Sampling Profiler"));
+    timer.scheduleAtFixedRate(this, intervalMicros, intervalMicros, TimeUnit.MICROSECONDS);
+  }
+
+  public void stop() {
+    if (timer != null) {
+      timer.shutdown();
+      try {
+        timer.awaitTermination(1, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  @Override
+  public void run() {
+    // Read the depth first; it is the volatile that publishes the stack entries
+    int depth = listener.getSampledDepth();
+    int[] stack = listener.getSampledStack();
+    depth = Math.min(depth, stack.length);
+    samples++;
+    if (depth == 0) {
+      idleSamples++;
+      return;
+    }
+
+    StringBuilder key = new StringBuilder();
+    for (int i = 0; i < depth; i++) {
+      int id = stack[i];
+      ensureCapacity(id);
+      // Recursion should only count once towards the inclusive time
+      if (seenInSample[id] != samples) {
+        seenInSample[id] = samples;
+        total[id]++;
+      }
+      if (i > 0) {
+        key.append(';');
+      }
+      key.append(id);
+    }
+    self[stack[depth - 1]]++;
+
+    long[] count = collapsed.get(key.toString());
+    if (count == null) {
+      collapsed.put(key.toString(), new long[] { 1 });
+    } else {
+      count[0]++;
+    }
+  }
+
+  private void ensureCapacity(int id) {
+    if (id >= self.length) {
+      int size = Math.max(id + 1, self.length * 2);
+      self = Arrays.copyOf(self, size);
+      total = Arrays.copyOf(total, size);
+      seenInSample = Arrays.copyOf(seenInSample, size);
+    }
+  }
+
+  /**
+   * Writes a histogram of the hottest instructions to reportFile and the
+   * collapsed stacks (the input format for flame graph tools) to
+   * collapsedFile. Call this after {@link #stop()}.
+   *
+   * @return a short summary for the debug console
+   */
+  public String writeReport(File reportFile, File collapsedFile) throws IOException {
+    List<Integer> ids = new ArrayList<>();
+    for (int id = 0; id < Math.min(self.length, instructions.size()); id++) {
+      if (total[id] > 0) {
+        ids.add(id);
+      }
+    }
+    Collections.sort(ids, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return self[a] == self[b] ? Long.compare(total[b], total[a]) : Long.compare(self[b], self[a]);
+      }
+    });
+
+    StringBuilder summary = new StringBuilder();
+    summary.append(String.format("Sampling profile: %d samples every %dus (%d idle)%n", samples, intervalMicros, idleSamples));
+    PrintWriter out = new PrintWriter(reportFile, "UTF-8");
+    try {
+      out.println(summary.toString().trim());
+      out.println("self%\ttotal%\tself\ttotal\tinstruction");
+      int rank = 0;
+      for (int id : ids) {
+        String line = String.format("%.1f\t%.1f\t%d\t%d\t%s", percent(self[id]), percent(total[id]), self[id], total[id],
+            instructions.getDescription(id));
+        out.println(line);
+        if (rank++ < 10) {
+          summary.append(line).append('\n');
+        }
+      }
+    } finally {
+      out.close();
+    }
+
+    out = new PrintWriter(collapsedFile, "UTF-8");
+    try {
+      for (Map.Entry<String, long[]> e : collapsed.entrySet()) {
+        StringBuilder frames = new StringBuilder();
+        for (String id : e.getKey().split(";")) {
+          if (frames.length() > 0) {
+            frames.append(';');
+          }
+          // ';' separates frames and ' ' the count, so keep them out of the names
+          frames.append(instructions.getDescription(Integer.parseInt(id)).replace(';', ',').replace(' ', '_'));
+        }
+        out.println(frames + " " + e.getValue()[0]);
+      }
+    } finally {
+      out.close();
+    }
+    return summary.toString();
+  }
+
+  private double percent(long count) {
+    return samples == 0 ? 0 : 100.0 * count / samples;
+  }
+}
@@ -0,0 +1,26 @@
+package com.philschatz.xslt;
+
+import net.sf.saxon.expr.Expression;
+import net.sf.saxon.expr.StaticContext;
+import net.sf.saxon.om.StructuredQName;
+import net.sf.saxon.trace.XSLTTraceCodeInjector;
+
+/**
+ * Only wraps the instructions accepted by a {@link TraceFilter} in trace
+ * expressions. Everything else is compiled as if tracing were off.
+ */
+public class SelectiveTraceCodeInjector extends XSLTTraceCodeInjector {
+  private final TraceFilter filter;
+
+  public SelectiveTraceCodeInjector(TraceFilter filter) {
+    this.filter = filter;
+  }
+
+  @Override
+  public Expression inject(Expression exp, StaticContext env, int construct, StructuredQName qName) {
+    if (!filter.acceptsKind(construct) || !filter.acceptsModule(env.getSystemId())) {
+      return exp;
+    }
+    return super.inject(exp, env, construct, qName);
+  }
+}
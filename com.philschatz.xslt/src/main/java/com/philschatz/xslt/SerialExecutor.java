@@ -0,0 +1,57 @@
+package com.philschatz.xslt;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs tasks one at a time, in the order they were submitted, on a shared
+ * executor (the pattern from the {@link Executor} docs). Several of these can
+ * share one pool: each keeps its own order without holding up the others.
+ */
+class SerialExecutor implements Executor {
+  private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+  private final Executor executor;
+  private Runnable active;
+
+  SerialExecutor(Executor executor) {
+    this.executor = executor;
+  }
+
+  /** @throws RejectedExecutionException if the shared executor was shut down */
+  @Override
+  public synchronized void execute(final Runnable r) {
+    tasks.add(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          r.run();
+        } finally {
+          scheduleNext();
+        }
+      }
+    });
+    if (active == null) {
+      active = tasks.poll();
+      try {
+        executor.execute(active);
+      } catch (RejectedExecutionException e) {
+        active = null;
+        throw e;
+      }
+    }
+  }
+
+  private synchronized void scheduleNext() {
+    active = tasks.poll();
+    if (active != null) {
+      try {
+        executor.execute(active);
+      } catch (RejectedExecutionException e) {
+        // The connection is closed; nobody waits for the rest
+        tasks.clear();
+        active = null;
+      }
+    }
+  }
+}
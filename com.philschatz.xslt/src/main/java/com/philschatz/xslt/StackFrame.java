@@ -4,21 +4,28 @@ import java.util.List;
 import java.util.Map;
 
 import net.sf.saxon.om.GroundedValue;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.NamespaceResolver;
 import net.sf.saxon.om.NodeInfo;
 import net.sf.saxon.om.Sequence;
 import net.sf.saxon.trans.XPathException;
 import net.sf.saxon.value.StringValue;
 
 public class StackFrame extends Variable {
+  public static final String CONTEXT_ITEM = "(this)";
+
   public final String systemId;
   public final int lineNumber;
   public final int columnNumber;
   public final String construct;
   public final Map<String, GroundedValue> parameters;
   public final List<Variable> variables;
+  public final Item contextItem;
+  public final NamespaceResolver namespaces;
 
   StackFrame(ObjectPool<ObjectPool.Unit, Variable> pool, final String systemId, final int lineNumber, final int columnNumber, final String construct,
-      final NodeInfo node, final Map<String, GroundedValue> parameters, final List<Variable> variables) {
+      final NodeInfo node, final Map<String, GroundedValue> parameters, final List<Variable> variables,
+      final Item contextItem, final NamespaceResolver namespaces) {
         super("I_AM_A_SCOPE_NOT_A_VARIABLE", null, pool);
     this.systemId = systemId;
     this.lineNumber = lineNumber;
@@ -26,8 +33,10 @@ public class StackFrame extends Variable {
     this.construct = construct;
     this.parameters = parameters;
     this.variables = variables;
+    this.contextItem = contextItem;
+    this.namespaces = namespaces;
     // Add the context node to the list of variables
-    this.variables.add(0, new Variable("(this)", node, pool));
+    this.variables.add(0, new Variable(CONTEXT_ITEM, node, pool));
   }
 
   @Override
@@ -35,6 +44,12 @@ public class StackFrame extends Variable {
     return variables;
   }
 
+  @Override
+  public List<Variable> getChildren(int start, int count) {
+    int end = count > 0 ? Math.min(variables.size(), start + count) : variables.size();
+    return variables.subList(Math.min(start, end), end);
+  }
+
   public static String convert(final Object o) {
     if (o instanceof NodeInfo) {
       final NodeInfo n = (NodeInfo) o;
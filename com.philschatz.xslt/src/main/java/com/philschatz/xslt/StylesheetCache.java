@@ -0,0 +1,238 @@
+package com.philschatz.xslt;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.URIResolver;
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.lib.Feature;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XsltCompiler;
+import net.sf.saxon.s9api.XsltExecutable;
+
+/**
+ * Compiled stylesheets shared by every debug session of the server.
+ *
+ * Every compile records the modules it read (xsl:include and xsl:import) and
+ * their directories are watched. When a module changes on disk, each
+ * stylesheet that uses it is recompiled in the background, so the next launch
+ * picks up a fresh executable instead of waiting for the compiler.
+ *
+ * Saxon HE cannot recompile a single module of a stylesheet, so the whole
+ * stylesheet is recompiled; what is kept between compiles is the Processor
+ * (name pool, schema types, a warmed-up compiler).
+ */
+public class StylesheetCache {
+  private static final Logger logger = Logger.getLogger("xslt-debug");
+  // Editors tend to save a file in several steps
+  private static final long SETTLE_MILLIS = 50;
+
+  private final Processor processor;
+  private final ExecutorService compiler =
+      Executors.newSingleThreadExecutor(Threads.daemonThreads("Xslt Stylesheet Compiler"));
+  private final Map<Path, Entry> entries = new HashMap<>();
+  private final Set<Path> watchedDirectories = new HashSet<>();
+  private WatchService watcher;
+
+  private class Entry implements Callable<XsltExecutable> {
+    final Path stylesheet;
+    final TraceFilter filter;
+    volatile Set<Path> modules = Collections.emptySet();
+    Future<XsltExecutable> executable;
+
+    Entry(Path stylesheet, TraceFilter filter) {
+      this.stylesheet = stylesheet;
+      this.filter = filter;
+    }
+
+    @Override
+    public XsltExecutable call() throws SaxonApiException {
+      final Set<Path> used = new HashSet<>();
+      used.add(stylesheet);
+      XsltCompiler c = processor.newXsltCompiler();
+      if (filter.isAll()) {
+        c.setCompileWithTracing(true);
+      } else {
+        c.getUnderlyingCompilerInfo().setCodeInjector(new SelectiveTraceCodeInjector(filter));
+      }
+      c.setURIResolver(new URIResolver() {
+        @Override
+        public Source resolve(String href, String base) throws TransformerException {
+          Source source = processor.getUnderlyingConfiguration().getSystemURIResolver().resolve(href, base);
+          Path module = toPath(source.getSystemId());
+          if (module != null) {
+            used.add(module);
+          }
+          return source;
+        }
+      });
+      long start = System.nanoTime();
+      try {
+        return c.compile(new StreamSource(stylesheet.toFile()));
+      } finally {
+        modules = used;
+        watch(used);
+        logger.info(String.format("Compiled %s (%d modules) in %dms", stylesheet, used.size(),
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+      }
+    }
+  }
+
+  public StylesheetCache() {
+    processor = new Processor(false);
+    processor.setConfigurationProperty(Feature.EAGER_EVALUATION, true);
+    processor.setConfigurationProperty(Feature.OPTIMIZATION_LEVEL, 0); // disable variable inlining
+    processor.setConfigurationProperty(Feature.LINE_NUMBERING, true);
+  }
+
+  public Processor getProcessor() {
+    return processor;
+  }
+
+  /**
+   * Returns the compiled stylesheet, waiting for a compile that is in progress.
+   * Compile errors are thrown again on every call until the stylesheet is
+   * fixed. Only the most recent trace filter of each stylesheet is kept.
+   */
+  public XsltExecutable get(String xsltPath, TraceFilter filter) throws SaxonApiException {
+    Path stylesheet = Paths.get(xsltPath).toAbsolutePath().normalize();
+    Future<XsltExecutable> executable;
+    synchronized (this) {
+      Entry entry = entries.get(stylesheet);
+      if (entry == null || !entry.filter.equals(filter)) {
+        entry = new Entry(stylesheet, filter);
+        entries.put(stylesheet, entry);
+        entry.executable = compiler.submit(entry);
+      } else if (isFailed(entry.executable)) {
+        entry.executable = compiler.submit(entry);
+      }
+      executable = entry.executable;
+    }
+    try {
+      return executable.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SaxonApiException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof SaxonApiException) {
+        throw (SaxonApiException) e.getCause();
+      }
+      throw new SaxonApiException(e.getCause());
+    }
+  }
+
+  private static boolean isFailed(Future<XsltExecutable> executable) {
+    if (!executable.isDone()) {
+      return false;
+    }
+    try {
+      executable.get();
+      return false;
+    } catch (Exception e) {
+      return true;
+    }
+  }
+
+  private synchronized void changed(Set<Path> files) {
+    for (Entry entry : entries.values()) {
+      if (!Collections.disjoint(entry.modules, files)) {
+        logger.info(String.format("Recompiling %s", entry.stylesheet));
+        entry.executable = compiler.submit(entry);
+      }
+    }
+  }
+
+  private synchronized void watch(Set<Path> modules) {
+    try {
+      if (watcher == null) {
+        watcher = FileSystems.getDefault().newWatchService();
+        Threads.daemonThreads("Xslt Stylesheet Watcher").newThread(new Runnable() {
+          @Override
+          public void run() {
+            pollChanges();
+          }
+        }).start();
+      }
+      for (Path module : modules) {
+        Path dir = module.getParent();
+        if (dir != null && watchedDirectories.add(dir)) {
+          dir.register(watcher, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_CREATE);
+        }
+      }
+    } catch (IOException e) {
+      logger.log(Level.WARNING, String.format("Cannot watch stylesheet modules: %s", e.toString()), e);
+    }
+  }
+
+  private void pollChanges() {
+    try {
+      while (true) {
+        WatchKey key = watcher.take();
+        Thread.sleep(SETTLE_MILLIS);
+        Set<Path> files = new HashSet<>();
+        while (key != null) {
+          Path dir = (Path) key.watchable();
+          for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.context() instanceof Path) {
+              files.add(dir.resolve((Path) event.context()));
+            }
+          }
+          key.reset();
+          key = watcher.poll();
+        }
+        changed(files);
+      }
+    } catch (InterruptedException e) {
+      // shutting down
+    } catch (Exception e) {
+      logger.log(Level.INFO, "Stopped watching stylesheet modules", e);
+    }
+  }
+
+  public synchronized void close() {
+    compiler.shutdownNow();
+    if (watcher != null) {
+      try {
+        watcher.close();
+      } catch (IOException e) {
+        logger.log(Level.WARNING, String.format("Close WatchService exception: %s", e.toString()), e);
+      }
+    }
+  }
+
+  private static Path toPath(String systemId) {
+    if (systemId == null || !systemId.startsWith("file:")) {
+      return null;
+    }
+    try {
+      return new File(new URI(systemId)).toPath().toAbsolutePath().normalize();
+    } catch (Exception e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,21 @@
+package com.philschatz.xslt;
+
+import java.util.concurrent.ThreadFactory;
+
+/** Helpers for the background threads of the debugger */
+final class Threads {
+  private Threads() {
+  }
+
+  /** Named daemon threads, so a background task never keeps the JVM alive */
+  static ThreadFactory daemonThreads(final String name) {
+    return new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+      }
+    };
+  }
+}
@@ -0,0 +1,157 @@
+package com.philschatz.xslt;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.microsoft.java.debug.core.adapter.AdapterUtils;
+
+import net.sf.saxon.trace.InstructionInfo;
+
+/**
+ * Which modules and which kinds of instruction get traced. Built from the
+ * "traceModules" and "traceKinds" launch options; a module that has a
+ * breakpoint is always traced.
+ *
+ * Immutable, and used as part of the key of a compiled stylesheet.
+ */
+public class TraceFilter {
+  public static final TraceFilter ALL = new TraceFilter(null, null);
+
+  /** Module paths, or the trailing part of them, e.g. "lib/common.xsl". null for every module */
+  private final Set<String> modules;
+  /** Construct names as shown in the call stack, e.g. "xsl:template". null for every kind */
+  private final Set<String> kinds;
+
+  private TraceFilter(Set<String> modules, Set<String> kinds) {
+    this.modules = modules;
+    this.kinds = kinds;
+  }
+
+  public static TraceFilter create(XSLTLaunchArguments args, List<XSLTBreakpoint> breakpoints) {
+    Set<String> modules = null;
+    if (args.traceModules != null) {
+      modules = new TreeSet<>();
+      for (String module : args.traceModules) {
+        modules.add(module.replace('\\', '/'));
+      }
+      for (XSLTBreakpoint b : breakpoints) {
+        modules.add(b.path.replace('\\', '/'));
+      }
+    }
+    Set<String> kinds = args.traceKinds == null ? null : new TreeSet<>(Arrays.asList(args.traceKinds));
+    if (modules == null && kinds == null) {
+      return ALL;
+    }
+    return new TraceFilter(modules == null ? null : Collections.unmodifiableSet(modules),
+        kinds == null ? null : Collections.unmodifiableSet(kinds));
+  }
+
+  public boolean isAll() {
+    return modules == null && kinds == null;
+  }
+
+  public boolean acceptsKind(int constructType) {
+    return kinds == null || kinds.contains(InstructionTable.getDisplayName(constructType));
+  }
+
+  public boolean acceptsModule(String systemId) {
+    if (modules == null) {
+      return true;
+    }
+    if (systemId == null) {
+      return false;
+    }
+    String path = AdapterUtils.convertPath(XSLTDebugTraceListener.normalize(systemId), true, false);
+    if (path == null) {
+      return false;
+    }
+    path = path.replace('\\', '/');
+    for (String module : modules) {
+      if (path.equals(module) || path.endsWith("/" + module)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Not every trace point goes through the code injector (template bodies,
+   * attributes of literal result elements, xsl:choose branches, ...), so the
+   * trace listener checks again at run time. Decisions are remembered per
+   * construct and per module, so this is cheap for the transform thread that
+   * owns the Matcher.
+   */
+  public Matcher newMatcher() {
+    return new Matcher();
+  }
+
+  public class Matcher {
+    private static final byte UNKNOWN = 0;
+    private static final byte YES = 1;
+    private static final byte NO = 2;
+
+    private byte[] kindDecisions = new byte[4096];
+    private final Map<String, Boolean> moduleDecisions = new HashMap<>();
+    private String lastSystemId;
+    private boolean lastModule;
+
+    public boolean accepts(InstructionInfo info) {
+      return acceptsKind(info.getConstructType()) && acceptsModule(info.getSystemId());
+    }
+
+    private boolean acceptsKind(int constructType) {
+      if (kinds == null) {
+        return true;
+      }
+      if (constructType >= kindDecisions.length) {
+        kindDecisions = Arrays.copyOf(kindDecisions, constructType + 1);
+      }
+      if (kindDecisions[constructType] == UNKNOWN) {
+        kindDecisions[constructType] = TraceFilter.this.acceptsKind(constructType) ? YES : NO;
+      }
+      return kindDecisions[constructType] == YES;
+    }
+
+    private boolean acceptsModule(String systemId) {
+      if (modules == null) {
+        return true;
+      }
+      // The same systemId string is shared by every instruction of a module
+      if (systemId != lastSystemId) {
+        Boolean accepted = moduleDecisions.get(systemId);
+        if (accepted == null) {
+          accepted = TraceFilter.this.acceptsModule(systemId);
+          moduleDecisions.put(systemId, accepted);
+        }
+        lastSystemId = systemId;
+        lastModule = accepted;
+      }
+      return lastModule;
+    }
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof TraceFilter)) {
+      return false;
+    }
+    TraceFilter other = (TraceFilter) o;
+    return (modules == null ? other.modules == null : modules.equals(other.modules))
+        && (kinds == null ? other.kinds == null : kinds.equals(other.kinds));
+  }
+
+  @Override
+  public int hashCode() {
+    return (modules == null ? 0 : modules.hashCode()) * 31 + (kinds == null ? 0 : kinds.hashCode());
+  }
+
+  @Override
+  public String toString() {
+    return String.format("modules=%s kinds=%s", modules == null ? "*" : modules, kinds == null ? "*" : kinds);
+  }
+}
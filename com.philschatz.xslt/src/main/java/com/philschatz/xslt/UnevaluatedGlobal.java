@@ -0,0 +1,96 @@
+package com.philschatz.xslt;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.microsoft.java.debug.core.protocol.Types;
+
+import net.sf.saxon.expr.Component;
+import net.sf.saxon.expr.instruct.GlobalVariable;
+import net.sf.saxon.om.GroundedValue;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.value.StringValue;
+
+/**
+ * A global variable or parameter the run has not needed yet. Saxon evaluates
+ * globals lazily and some are large lookups, so it is shown as "not yet
+ * evaluated" with a lazy presentation hint; the client offers to evaluate it,
+ * and only expanding it does. The value is computed on the paused transform
+ * thread, exactly as the transform would have, and kept in the bindery for the
+ * rest of the run.
+ *
+ * While the run is paused inside the evaluation of a global (e.g. in a
+ * function its select calls) no other global is evaluated: one that depends on
+ * it would fail with a circularity error, and Saxon would keep that error as
+ * its value for the rest of the run. The global on the stack is shown as
+ * "being evaluated", the others cannot be expanded until the run moves on.
+ */
+public class UnevaluatedGlobal extends Variable {
+  static final String NOT_EVALUATED = "not yet evaluated";
+  static final String BEING_EVALUATED = "being evaluated";
+  static final String WAITING = "not yet evaluated; can be evaluated once %s is";
+
+  private final GlobalVariable global;
+  private final Component component;
+  private final XSLTDebugTraceListener listener;
+  private final ObjectPool<ObjectPool.Unit, Variable> pool;
+  // The global whose evaluation the run is paused in, or null
+  private final GlobalVariable onStack;
+  private List<Variable> evaluated;
+
+  UnevaluatedGlobal(String k, GlobalVariable global, Component component, XSLTDebugTraceListener listener,
+      GlobalVariable onStack, ObjectPool<ObjectPool.Unit, Variable> pool) {
+    super(k, null, pool);
+    this.global = global;
+    this.component = component;
+    this.listener = listener;
+    this.onStack = onStack;
+    this.pool = pool;
+  }
+
+  private boolean canEvaluate() {
+    return onStack == null;
+  }
+
+  @Override
+  public String getValue() {
+    if (onStack == null) {
+      return NOT_EVALUATED;
+    }
+    return onStack == global ? BEING_EVALUATED
+        : String.format(WAITING, "$" + onStack.getVariableQName().getDisplayName());
+  }
+
+  @Override
+  public String getType() {
+    return "";
+  }
+
+  @Override
+  public Types.Variable toResponse() {
+    if (!canEvaluate()) {
+      return new ExtraTypesVariable(getKey(), getValue(), getType(), 0, null);
+    }
+    ExtraTypesVariable ret = new ExtraTypesVariable(getKey(), NOT_EVALUATED, getType(), (int) getId(), null);
+    ret.presentationHint = ExtraTypesVariable.PresentationHint.LAZY;
+    return ret;
+  }
+
+  /** The evaluated variable, as the only child */
+  @Override
+  public synchronized List<Variable> getChildren(int start, int count) {
+    if (!canEvaluate()) {
+      return Collections.emptyList();
+    }
+    if (evaluated == null) {
+      GroundedValue value;
+      try {
+        value = listener.evaluateGlobal(global, component);
+      } catch (XPathException e) {
+        value = new StringValue("error: " + e.getMessage());
+      }
+      evaluated = Collections.singletonList(new Variable(getKey(), value, pool));
+    }
+    return start == 0 ? evaluated : Collections.<Variable>emptyList();
+  }
+}
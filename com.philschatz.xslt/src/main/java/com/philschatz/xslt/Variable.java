@@ -32,27 +32,50 @@ public class Variable {
     this.id = pool.store(ObjectPool.UNIT, this);
   }
 
+  public long getId() { return id; }
   public String getKey() { return k; }
   public String getValue() { return getValue(this.v); }
   public String getType() { return getType(this.v);  }
+  GroundedValue getGroundedValue() { return v; }
   
   public Types.Variable toResponse() {
-    int childPtr =_getChilds().size() > 0 ? (int) id : 0;
-    return new ExtraTypesVariable(getKey(), getValue(), getType(), childPtr, getSource(this.v));
+    int childPtr = hasChildren() ? (int) id : 0;
+    ExtraTypesVariable ret = new ExtraTypesVariable(getKey(), getValue(), getType(), childPtr, getSource(this.v));
+    if (childPtr != 0 && !(v instanceof NodeInfo)) {
+      // Lets the client page through large sequences instead of fetching them whole
+      ret.indexedVariables = v.getLength();
+    }
+    return ret;
+  }
+
+  public boolean hasChildren() {
+    return _getChilds(0, 1).size() > 0;
+  }
+
+  /** Whether there are more than the given number of children, without rendering them */
+  boolean hasChildrenAfter(int index) {
+    return _getChilds(index, 1).size() > 0;
   }
 
   public List<Variable> getChildren() {
+    return getChildren(0, 0);
+  }
+
+  /**
+   * @param start index of the first child to return
+   * @param count maximum number of children to return, or 0 for all of them
+   */
+  public List<Variable> getChildren(int start, int count) {
     List<Variable> ret = new ArrayList<>();
-    for (Map.Entry<String, GroundedValue> entry : _getChilds().entrySet()) {
-      Variable child = new Variable(entry.getKey(), entry.getValue(), pool);
-      this.pool.store(ObjectPool.UNIT, child);
-      ret.add(child);
+    for (Map.Entry<String, GroundedValue> entry : _getChilds(start, count).entrySet()) {
+      ret.add(new Variable(entry.getKey(), entry.getValue(), pool));
     }
     return ret;
   }
 
-  private Map<String, GroundedValue> _getChilds() {
+  private Map<String, GroundedValue> _getChilds(int start, int count) {
     Map<String, GroundedValue> ret = new LinkedHashMap<>();
+    int end = count > 0 ? start + count : Integer.MAX_VALUE;
     if (v == null) {
     } else if (v instanceof NodeInfo) {
       NodeInfo n = (NodeInfo) v;
@@ -60,7 +83,8 @@ public class Variable {
         AxisIterator it = n.iterateAxis(AxisInfo.CHILD);
         NodeInfo child;
         int i = 0;
-        while((child = it.next()) != null) {
+        while(i < end && (child = it.next()) != null) {
+          RequestCancellation.check();
           switch (child.getNodeKind()) {
             case Type.WHITESPACE_TEXT:
             case Type.TEXT:
@@ -74,24 +98,20 @@ public class Variable {
             case Type.COMMENT:
             case Type.DOCUMENT:
             case Type.NAMESPACE:
-              ret.put(String.valueOf(i), child);
+              if (i >= start) {
+                ret.put(String.valueOf(i), child);
+              }
               i++;
               break;
           }
         }
       }
     } else if (v instanceof Sequence) {
-      try {
-        Sequence s = (Sequence) v;
-        SequenceIterator si = s.iterate();
-        GroundedValue item;
-        int i = 0;
-        while ((item = si.next()) != null) {
-          ret.put(String.valueOf(i), item);
-          i++;
-        }
-      } catch (XPathException e) {
-        
+      // GroundedValues have positional access so only the requested page is touched
+      int last = Math.min(end, v.getLength());
+      for (int i = start; i < last; i++) {
+        RequestCancellation.check();
+        ret.put(String.valueOf(i), v.itemAt(i));
       }
     } else {
       throw new Error("BUG: Unsupported type for determining if there are children");
@@ -138,6 +158,7 @@ public class Variable {
         int i = 0;
         SequenceIterator si = s.iterate();
         while ((si.next()) != null) {
+            RequestCancellation.check();
             i++;
         }
 
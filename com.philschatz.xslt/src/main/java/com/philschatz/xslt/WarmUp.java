@@ -0,0 +1,73 @@
+package com.philschatz.xslt;
+
+import java.io.StringReader;
+
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.Controller;
+import net.sf.saxon.expr.XPathContext;
+import net.sf.saxon.lib.Logger;
+import net.sf.saxon.lib.TraceListener;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.s9api.NullDestination;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XPathCompiler;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.Xslt30Transformer;
+import net.sf.saxon.s9api.XsltCompiler;
+import net.sf.saxon.s9api.XsltExecutable;
+import net.sf.saxon.trace.InstructionInfo;
+
+/**
+ * Compiles and runs a small stylesheet a few times so the first real session
+ * does not pay for loading Saxon's classes and for a cold JIT. Used by the
+ * daemon mode of {@link App}, and to record the class list for AppCDS.
+ */
+public class WarmUp {
+  private static final String STYLESHEET = "<xsl:stylesheet version='3.0'"
+      + " xmlns:xsl='http://www.w3.org/1999/XSL/Transform' xmlns:xs='http://www.w3.org/2001/XMLSchema'"
+      + " xmlns:f='urn:warm-up' exclude-result-prefixes='#all'>"
+      + "<xsl:key name='by-n' match='item' use='@n'/>"
+      + "<xsl:function name='f:twice' as='xs:integer'><xsl:param name='n' as='xs:integer'/>"
+      + "<xsl:sequence select='$n * 2'/></xsl:function>"
+      + "<xsl:template match='/'><out><xsl:apply-templates select='//item'><xsl:sort select='@n' data-type='number'/>"
+      + "</xsl:apply-templates><xsl:for-each select='key(\"by-n\", \"2\")'><xsl:copy-of select='.'/></xsl:for-each>"
+      + "</out></xsl:template>"
+      + "<xsl:template match='item'><xsl:variable name='v' select='f:twice(xs:integer(@n))'/>"
+      + "<xsl:choose><xsl:when test='$v gt 2'><big n='{$v}'><xsl:value-of select='name()'/></big></xsl:when>"
+      + "<xsl:otherwise><small><xsl:attribute name='n' select='$v'/></small></xsl:otherwise></xsl:choose>"
+      + "</xsl:template></xsl:stylesheet>";
+  private static final String SOURCE = "<root><item n='1'/><item n='2'/><item n='3'/></root>";
+
+  /** Does nothing, but makes Saxon go through the traced code paths */
+  private static class NullTraceListener implements TraceListener {
+    @Override public void setOutputDestination(Logger logger) {}
+    @Override public void open(Controller controller) {}
+    @Override public void close() {}
+    @Override public void enter(InstructionInfo instruction, XPathContext context) {}
+    @Override public void leave(InstructionInfo instruction) {}
+    @Override public void startCurrentItem(Item item) {}
+    @Override public void endCurrentItem(Item item) {}
+  }
+
+  /** @return how long it took, in milliseconds */
+  public static long run(Processor processor, int iterations) throws SaxonApiException {
+    long start = System.nanoTime();
+    XdmNode source = processor.newDocumentBuilder().build(new StreamSource(new StringReader(SOURCE)));
+    for (int i = 0; i < iterations; i++) {
+      XsltCompiler compiler = processor.newXsltCompiler();
+      compiler.setCompileWithTracing(true);
+      XsltExecutable ex = compiler.compile(new StreamSource(new StringReader(STYLESHEET), "warm-up.xsl"));
+      Xslt30Transformer transformer = ex.load30();
+      transformer.setTraceListener(new NullTraceListener());
+      transformer.applyTemplates(source, new NullDestination());
+
+      // What EVALUATE does
+      XPathCompiler xpath = processor.newXPathCompiler();
+      xpath.declareNamespace("f", "urn:warm-up");
+      xpath.evaluate("count(//item[@n > 1])", source);
+    }
+    return (System.nanoTime() - start) / 1000000;
+  }
+}
@@ -0,0 +1,83 @@
+package com.philschatz.xslt;
+
+import java.util.concurrent.TimeUnit;
+
+import net.sf.saxon.om.StandardNames;
+
+/**
+ * Budgets that stop a runaway transform (infinite recursion, a loop that never
+ * ends) before it takes the server down with a StackOverflowError or an
+ * OutOfMemoryError. The checks are a couple of integer compares per
+ * instruction; the clock is only read every {@value #CLOCK_INTERVAL}
+ * instructions.
+ *
+ * When a budget runs out the transform pauses, and it gets a fresh budget of
+ * the same size if the user continues. Time spent paused does not count.
+ * Only used from the transform thread.
+ */
+class Watchdog {
+  private static final int CLOCK_INTERVAL = 1024;
+
+  private final int maxDepth;
+  private final long maxInstructions;
+  private final long maxNanos;
+
+  private int templateDepth;
+  private int depthLimit;
+  private long instructions;
+  private long instructionLimit;
+  private long deadline;
+
+  /** @return null if none of the budgets are set */
+  static Watchdog create(XSLTLaunchArguments options) {
+    if (options.maxDepth <= 0 && options.maxInstructions <= 0 && options.maxMillis <= 0) {
+      return null;
+    }
+    return new Watchdog(options.maxDepth, options.maxInstructions, options.maxMillis);
+  }
+
+  private Watchdog(int maxDepth, long maxInstructions, long maxMillis) {
+    this.maxDepth = maxDepth;
+    this.maxInstructions = maxInstructions;
+    this.maxNanos = TimeUnit.MILLISECONDS.toNanos(maxMillis);
+    depthLimit = maxDepth > 0 ? maxDepth : Integer.MAX_VALUE;
+    instructionLimit = maxInstructions > 0 ? maxInstructions : Long.MAX_VALUE;
+    deadline = maxNanos > 0 ? System.nanoTime() + maxNanos : Long.MAX_VALUE;
+  }
+
+  /**
+   * Counts an instruction.
+   *
+   * @return why the transform should pause, or null to keep going
+   */
+  String enter(int construct) {
+    if (construct == StandardNames.XSL_TEMPLATE || construct == StandardNames.XSL_FUNCTION) {
+      if (++templateDepth > depthLimit) {
+        depthLimit += maxDepth;
+        return String.format("Templates and functions are nested more than %d deep (maxDepth)", templateDepth - 1);
+      }
+    }
+    if (++instructions > instructionLimit) {
+      instructionLimit += maxInstructions;
+      return String.format("Ran %d instructions (maxInstructions)", instructions - 1);
+    }
+    if (instructions % CLOCK_INTERVAL == 0 && deadline != Long.MAX_VALUE && System.nanoTime() > deadline) {
+      deadline = System.nanoTime() + maxNanos;
+      return String.format("Ran for more than %dms (maxMillis)", TimeUnit.NANOSECONDS.toMillis(maxNanos));
+    }
+    return null;
+  }
+
+  void leave(int construct) {
+    if ((construct == StandardNames.XSL_TEMPLATE || construct == StandardNames.XSL_FUNCTION) && templateDepth > 0) {
+      templateDepth--;
+    }
+  }
+
+  /** Pushes the deadline back by the time the transform was paused for */
+  void paused(long nanos) {
+    if (deadline != Long.MAX_VALUE) {
+      deadline += nanos;
+    }
+  }
+}
@@ -17,8 +17,15 @@ public class XSLTDebugServer {
     private ServerSocket serverSocket = null;
     private boolean isStarted = false;
     private ExecutorService executor = null;
+    // Shared by all connections so a relaunch reuses (or waits for) the last compile
+    private final StylesheetCache stylesheets;
 
     public XSLTDebugServer(int port) {
+        this(port, new StylesheetCache());
+    }
+
+    public XSLTDebugServer(int port, StylesheetCache stylesheets) {
+        this.stylesheets = stylesheets;
         try {
             this.serverSocket = new ServerSocket(port, 1);
             logger.log(Level.INFO, String.format("Started up on port %d", serverSocket.getLocalPort()));
@@ -27,6 +34,11 @@ public class XSLTDebugServer {
         }
     }
 
+    /** The port the server listens on, e.g. when it was created with port 0; -1 if it is not listening */
+    public synchronized int getPort() {
+        return serverSocket == null ? -1 : serverSocket.getLocalPort();
+    }
+
     /**
      * Starts the server if it's not started yet.
      */
@@ -67,6 +79,7 @@ public class XSLTDebugServer {
     public synchronized void stop() {
         closeServerSocket();
         shutdownConnectionPool(true);
+        stylesheets.close();
     }
 
     private synchronized void closeServerSocket() {
@@ -96,8 +109,11 @@ public class XSLTDebugServer {
             @Override
             public void run() {
                 try {
+                    // Without it a small message can wait for the client to acknowledge the
+                    // previous one (Nagle's algorithm against delayed ACKs)
+                    connection.setTcpNoDelay(true);
                     ProtocolServer protocolServer = new ProtocolServer(connection.getInputStream(),
-                            connection.getOutputStream());
+                            connection.getOutputStream(), stylesheets);
                     // protocol server will dispatch request and send response in a while-loop.
                     protocolServer.run();
                 } catch (IOException e) {
@@ -2,25 +2,42 @@ package com.philschatz.xslt;
 
 import net.sf.saxon.lib.TraceListener;
 import net.sf.saxon.trace.InstructionInfo;
-import net.sf.saxon.trace.LocationKind;
 import net.sf.saxon.trans.XPathException;
 import net.sf.saxon.Controller;
+import net.sf.saxon.PreparedStylesheet;
+import net.sf.saxon.expr.Component;
 import net.sf.saxon.expr.XPathContext;
+import net.sf.saxon.expr.instruct.Bindery;
+import net.sf.saxon.expr.instruct.GlobalVariable;
+import net.sf.saxon.expr.instruct.TraceExpression;
 import net.sf.saxon.om.GroundedValue;
 import net.sf.saxon.om.Item;
 import net.sf.saxon.om.NodeInfo;
 import net.sf.saxon.om.Sequence;
 import net.sf.saxon.om.StandardNames;
 import net.sf.saxon.om.StructuredQName;
+import net.sf.saxon.om.TreeInfo;
+import net.sf.saxon.value.StringValue;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.String;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import net.sf.saxon.lib.Logger;
 
 import com.microsoft.java.debug.core.adapter.AdapterUtils;
@@ -35,72 +52,202 @@ import com.microsoft.java.debug.core.protocol.Events.DebugEvent;
 
 public class XSLTDebugTraceListener implements TraceListener {
 
-  private final DebugContext context;
-  public List<XSLTBreakpoint> breakpoints = new ArrayList<XSLTBreakpoint>();
-
-  private final Stack<StackFrame> instructionStack = new Stack<StackFrame>();
-  private final Stack<Item> nodeStack = new Stack<Item>();
-
-  private final ObjectPool<Long, StackFrame> stackframePool = new ObjectPool<>();
-  public final ObjectPool<ObjectPool.Unit, Variable> variablesPool = new ObjectPool<>();
-
-  private final Object lock = new Object();
-  private boolean paused;
-
-  public XSLTDebugTraceListener(final DebugContext context) {
-    this.context = context;
+  private final DebugRun run;
+  private volatile List<XSLTBreakpoint> breakpoints = new ArrayList<XSLTBreakpoint>();
+
+  // These stacks are owned by the transform thread. The debugger only sees the
+  // PauseSnapshot that is published when the transform pauses.
+  private InstructionInfo[] instructionStack = new InstructionInfo[64];
+  private XPathContext[] contextStack = new XPathContext[64];
+  private int depth;
+  private Item[] nodeStack = new Item[64];
+  private int nodeDepth;
+  private final Map<String, String> sourcePaths = new HashMap<>();
+
+  // Breakpoints on lines of source documents, keyed by document number << 32 |
+  // line. Documents are added the first time one of their nodes becomes the
+  // current item, and everything is rebuilt when the breakpoints change.
+  private final LongIntHashMap sourceLines = new LongIntHashMap();
+  private final LongIntHashMap indexedDocuments = new LongIntHashMap();
+  private List<XSLTBreakpoint> indexedBreakpoints;
+  private TreeInfo lastTree;
+  private long lastDocument;
+
+  private volatile PauseSnapshot snapshot = PauseSnapshot.EMPTY;
+  private volatile boolean paused;
+  private Controller controller;
+  // Work the paused transform thread does for the client, e.g. evaluating a
+  // global variable. Its instructions are not traced while it runs.
+  private final LinkedBlockingQueue<FutureTask<?>> pausedTasks = new LinkedBlockingQueue<>();
+  private boolean runningPausedTask;
+
+  // Sampling mode only keeps a stack of instruction ids for the profiler thread
+  private SamplingProfiler profiler;
+  private final InstructionTable instructions;
+  private int[] sampledStack = new int[64];
+  private volatile int sampledDepth;
+
+  private InstructionCounter counter;
+  private MemoAdvisor memo;
+  private ProvenanceRecorder provenance;
+  private NodeHeatmap heatmap;
+  private AllocationTracker allocations;
+  // Counted on every instruction and published to the progress timer now and then
+  private RunProgress progress;
+  private long instructionCount;
+  private long itemCount;
+  // null when there are no budgets
+  private Watchdog watchdog;
+  // null when every instruction is traced
+  private TraceFilter.Matcher traced;
+
+  public XSLTDebugTraceListener(final DebugRun run) {
+    this.run = run;
+    this.instructions = new InstructionTable(run.getContext().getXsltPath());
     System.out.println("****************************************");
   }
 
   public void unpause() {
-    synchronized (lock) {
-      paused = false;
-      variablesPool.clear();
-    }
+    snapshot.cancelPrefetch();
+    snapshot = PauseSnapshot.EMPTY;
+    paused = false;
   }
 
-  private void pause() {
-    synchronized (lock) {
-      paused = true;
-    }
+  private void spinUntilUnpaused(final String reason) {
+    spinUntilUnpaused(reason, null);
   }
 
-  private boolean isPaused() {
-    synchronized (lock) {
-      return paused;
+  /**
+   * The snapshot is taken before the client hears about the pause, so a
+   * stackTrace sent right after the stopped event sees the frames.
+   *
+   * @param currentItem the context item of the innermost frame, if it is not the one the instruction started with
+   */
+  private void spinUntilUnpaused(final String reason, final Item currentItem) {
+    snapshot = takeSnapshot(currentItem);
+    run.getContext().prefetchVariables(snapshot);
+    paused = true;
+    run.getProtocolServer().sendEvent(new Events.StoppedEvent(reason, run.getThreadId()));
+    final long start = System.nanoTime();
+    while (paused) {
+      try {
+        final FutureTask<?> task = pausedTasks.poll(100, TimeUnit.MILLISECONDS);
+        if (task != null) {
+          runningPausedTask = true;
+          try {
+            task.run();
+          } finally {
+            runningPausedTask = false;
+          }
+        }
+      } catch (final InterruptedException e) {
+        e.printStackTrace();
+      }
     }
+    if (watchdog != null) {
+      watchdog.paused(System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Evaluates a global variable on the transform thread, which has to be
+   * paused, and waits for the value. Saxon keeps it in the bindery, so the
+   * transform uses the same value when it gets to it.
+   *
+   * @throws CancellationException if the run resumed or the request was cancelled first
+   */
+  GroundedValue evaluateGlobal(final GlobalVariable global, final Component component) throws XPathException {
+    return runWhilePaused(new Callable<GroundedValue>() {
+      @Override
+      public GroundedValue call() throws XPathException {
+        return global.evaluateVariable(controller.newXPathContext(), component);
+      }
+    });
   }
 
-  private void spinUntilUnpaused() {
-    pause();
-    while (isPaused()) {
+  /**
+   * Runs work on the transform thread, which has to be paused, and waits for
+   * the result. For anything that reads state of the transform that is not
+   * thread-safe.
+   *
+   * @throws CancellationException if the run resumed or the request was cancelled first
+   */
+  <T> T runWhilePaused(final Callable<T> work) throws XPathException {
+    final FutureTask<T> task = new FutureTask<>(work);
+    pausedTasks.add(task);
+    while (true) {
       try {
-        Thread.sleep(100);
+        return task.get(100, TimeUnit.MILLISECONDS);
+      } catch (final TimeoutException e) {
+        // Once it started the work has to finish, whatever happens to the request
+        if (!paused && task.cancel(false)) {
+          throw new CancellationException();
+        }
+        try {
+          RequestCancellation.check();
+        } catch (final CancellationException cancelled) {
+          task.cancel(false);
+          throw cancelled;
+        }
       } catch (final InterruptedException e) {
-        e.printStackTrace();
+        task.cancel(false);
+        Thread.currentThread().interrupt();
+        throw new CancellationException();
+      } catch (final ExecutionException e) {
+        if (e.getCause() instanceof XPathException) {
+          throw (XPathException) e.getCause();
+        }
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        }
+        throw new IllegalStateException(e.getCause());
       }
     }
   }
 
-  public void addBreakpoints(final List<XSLTBreakpoint> b) {
-    synchronized (lock) {
-      breakpoints.addAll(b);
-    }
+
+  public void setBreakpoints(final List<XSLTBreakpoint> b) {
+    breakpoints = new ArrayList<>(b);
   }
 
-  public Stack<StackFrame> getStackFrames() {
-    synchronized (lock) {
-      return instructionStack;
-    }
+  public List<XSLTBreakpoint> getBreakpoints() {
+    return breakpoints;
   }
 
+  public boolean isPaused() {
+    return paused;
+  }
+
+  public PauseSnapshot getSnapshot() {
+    return snapshot;
+  }
+
+  public List<StackFrame> getStackFrames() {
+    return snapshot.frames;
+  }
+
+  int getSampledDepth() {
+    return sampledDepth;
+  }
+
+  int[] getSampledStack() {
+    return sampledStack;
+  }
+
+  /**
+   * Only call this when the transform is not running; the stacks belong to the
+   * transform thread.
+   */
   public void clear() {
-    synchronized (lock) {
-      paused = false;
-      instructionStack.clear();
-      nodeStack.clear();
-      breakpoints.clear();
-    }
+    paused = false;
+    snapshot.cancelPrefetch();
+    snapshot = PauseSnapshot.EMPTY;
+    Arrays.fill(instructionStack, 0, depth, null);
+    Arrays.fill(contextStack, 0, depth, null);
+    Arrays.fill(nodeStack, 0, nodeDepth, null);
+    depth = 0;
+    nodeDepth = 0;
+    breakpoints = new ArrayList<XSLTBreakpoint>();
   }
 
   /**
@@ -110,6 +257,31 @@ public class XSLTDebugTraceListener implements TraceListener {
    * @param c Controller used
    */
   public void open(final Controller c) {
+    controller = c;
+    final XSLTLaunchArguments options = run.getLaunchArguments();
+    final TraceFilter filter = run.getTraceFilter();
+    traced = filter.isAll() ? null : filter.newMatcher();
+    if (options.isSampling()) {
+      sampledDepth = 0;
+      profiler = new SamplingProfiler(this, instructions, options.sampleIntervalMicros);
+      profiler.start();
+    } else {
+      profiler = null;
+    }
+    counter = options.isCounting()
+        ? new InstructionCounter(instructions, c, run.getContext().getXsltPath(), run.getSourceSystemId())
+        : null;
+    memo = options.isMemo() ? new MemoAdvisor(instructions) : null;
+    provenance = run.getOutput() != null ? new ProvenanceRecorder(run.getOutput(), instructions) : null;
+    heatmap = options.heatmap ? new NodeHeatmap(c, run.getSourceSystemId()) : null;
+    allocations = options.allocations ? new AllocationTracker(instructions, c) : null;
+    progress = run.getProgress();
+    instructionCount = 0;
+    itemCount = 0;
+    watchdog = Watchdog.create(options);
+    if (run.getResources() != null) {
+      run.getResources().open(c);
+    }
   }
 
   /**
@@ -123,7 +295,64 @@ public class XSLTDebugTraceListener implements TraceListener {
    * ends
    */
   public void close() {
-    this.context.getProtocolServer().sendEvent(new Events.TerminatedEvent(false));
+    if (progress != null) {
+      progress.publish(instructionCount, itemCount, null, null);
+      progress = null;
+    }
+    if (profiler != null) {
+      profiler.stop();
+      final SamplingProfiler stopped = profiler;
+      writeReport(new RunReport() {
+        @Override
+        public String writeReport(File reportFile) throws IOException {
+          return stopped.writeReport(reportFile, run.getReportFile(".collapsed"));
+        }
+      }, ".profile.txt");
+      profiler = null;
+    }
+    if (counter != null) {
+      writeReport(counter, ".counts.tsv");
+      counter = null;
+    }
+    if (memo != null) {
+      writeReport(memo, ".memo.txt");
+      memo = null;
+    }
+    if (provenance != null) {
+      final ProvenanceIndex index = provenance.finish();
+      run.setProvenanceIndex(index);
+      try {
+        index.write(run.getReportFile(".provenance"));
+      } catch (final IOException e) {
+        run.getProtocolServer().sendEvent(Events.OutputEvent.createStderrOutput(e.getLocalizedMessage()));
+      }
+      provenance = null;
+    }
+    if (run.getResources() != null) {
+      try {
+        writeReport(run.getResources(), ".resources.txt");
+      } finally {
+        run.getResources().close();
+      }
+    }
+    if (heatmap != null) {
+      writeReport(heatmap, ".heatmap.txt");
+      heatmap = null;
+    }
+    if (allocations != null) {
+      writeReport(allocations, ".allocations.txt");
+      allocations = null;
+    }
+  }
+
+  /** Writes a report next to the destination and shows its summary, or why it could not be written */
+  private void writeReport(RunReport report, String suffix) {
+    try {
+      String summary = report.writeReport(run.getReportFile(suffix));
+      run.getProtocolServer().sendEvent(Events.OutputEvent.createConsoleOutput(summary));
+    } catch (final IOException e) {
+      run.getProtocolServer().sendEvent(Events.OutputEvent.createStderrOutput(e.getLocalizedMessage()));
+    }
   }
 
   /**
@@ -136,14 +365,99 @@ public class XSLTDebugTraceListener implements TraceListener {
    * @param context XPath context used
    */
   public void enter(final InstructionInfo info, final XPathContext context) {
-    final int lineNumber = info.getLineNumber();
-    final int columnNumber = info.getColumnNumber();
-    // System.err.println(String.format("ENTERING %d:%d", lineNumber,
-    // columnNumber));
+    if (runningPausedTask) {
+      return;
+    }
+    if (traced != null && !traced.accepts(info)) {
+      return;
+    }
+    if (progress != null && (++instructionCount & 4095) == 0) {
+      final InstructionInfo component = innermostComponent();
+      progress.publish(instructionCount, itemCount, component, InstructionTable.templateRuleOf(component, context));
+    }
+    if (profiler != null) {
+      final int d = sampledDepth;
+      if (d == sampledStack.length) {
+        sampledStack = Arrays.copyOf(sampledStack, d * 2);
+      }
+      sampledStack[d] = instructions.idOf(info);
+      sampledDepth = d + 1;
+      return;
+    }
+    if (counter != null) {
+      counter.enter(info, context);
+      return;
+    }
+    if (memo != null) {
+      memo.enter(info, context);
+      return;
+    }
+
+    if (depth == instructionStack.length) {
+      instructionStack = Arrays.copyOf(instructionStack, depth * 2);
+      contextStack = Arrays.copyOf(contextStack, depth * 2);
+    }
+    instructionStack[depth] = info;
+    contextStack[depth] = context;
+    depth++;
+
+    if (provenance != null) {
+      provenance.enter(instructions.idOf(info), context.getContextItem());
+    }
+    if (allocations != null) {
+      allocations.enter(info, context);
+    }
+
+    final String overBudget = watchdog == null ? null : watchdog.enter(info.getConstructType());
+    if (overBudget != null) {
+      run.getProtocolServer().sendEvent(Events.OutputEvent.createStderrOutput(
+          String.format("Paused a runaway transform: %s\n", overBudget)));
+      spinUntilUnpaused("exception");
+    } else if (isBreakpoint(info)) {
+      // System.err.println(String.format("PAUSING %d:%d", lineNumber, columnNumber));
+      run.getContext().stoppedAtBreakpoint();
+      spinUntilUnpaused("breakpoint");
+    }
+
+    // System.err.println(String.format("ENTERED %d:%d", lineNumber, columnNumber));
+  }
 
-    // Get the current file URI
-    String systemId = info.getSystemId();
+  /** The template or function the transform is in, if the stack is kept */
+  private InstructionInfo innermostComponent() {
+    for (int i = depth - 1; i >= 0; i--) {
+      final int construct = instructionStack[i].getConstructType();
+      if (construct == StandardNames.XSL_TEMPLATE || construct == StandardNames.XSL_FUNCTION) {
+        return instructionStack[i];
+      }
+    }
+    return null;
+  }
 
+  private boolean isBreakpoint(final InstructionInfo info) {
+    final List<XSLTBreakpoint> bs = breakpoints;
+    if (bs.isEmpty()) {
+      return false;
+    }
+    final String path = getSourcePath(info.getSystemId());
+    final int line = AdapterUtils.convertLineNumber(info.getLineNumber(), false, true);
+    for (final XSLTBreakpoint b : bs) {
+      if (b.line == line && b.path.equals(path)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private String getSourcePath(final String systemId) {
+    String path = sourcePaths.get(systemId);
+    if (path == null && systemId != null) {
+      path = AdapterUtils.convertPath(normalize(systemId), true, false);
+      sourcePaths.put(systemId, path);
+    }
+    return path;
+  }
+
+  static String normalize(final String systemId) {
     // Normalize the current file URI
     URI systemIdUri;
     try {
@@ -151,53 +465,98 @@ public class XSLTDebugTraceListener implements TraceListener {
     } catch (final URISyntaxException e) {
       throw new RuntimeException(e);
     }
-    systemId = systemIdUri.normalize().toString();
+    return systemIdUri.normalize().toString();
+  }
 
-    String construct;
-    final int constructType = info.getConstructType();
-    if (constructType < 1024) {
-      construct = StandardNames.getClarkName(constructType);
-    } else {
-      switch (constructType) {
-        case LocationKind.LITERAL_RESULT_ELEMENT:
-          construct = "LITERAL_RESULT_ELEMENT";
-          break;
-        case LocationKind.LITERAL_RESULT_ATTRIBUTE:
-          construct = "LITERAL_RESULT_ATTRIBUTE";
-          break;
-        case LocationKind.EXTENSION_INSTRUCTION:
-          construct = "EXTENSION_INSTRUCTION";
-          break;
-        case LocationKind.TEMPLATE:
-          construct = "TEMPLATE";
-          break;
-        case LocationKind.FUNCTION_CALL:
-          construct = "FUNCTION_CALL";
-          break;
-        case LocationKind.XPATH_IN_XSLT:
-          construct = "XPATH_IN_XSLT";
-          break;
-        case LocationKind.LET_EXPRESSION:
-          construct = "LET_EXPRESSION";
-          break;
-        case LocationKind.TRACE_CALL:
-          construct = "TRACE_CALL";
-          break;
-        case LocationKind.SAXON_EVALUATE:
-          construct = "SAXON_EVALUATE";
-          break;
-        case LocationKind.FUNCTION:
-          construct = "FUNCTION";
-          break;
-        case LocationKind.XPATH_EXPRESSION:
-          construct = "XPATH_EXPRESSION";
-          break;
-        default:
-          construct = "Other";
+  /**
+   * Copies the transform thread's stacks into an immutable snapshot. This is
+   * where the (comparatively expensive) frame variables are materialized, so it
+   * only happens when the transform pauses.
+   */
+  private PauseSnapshot takeSnapshot(final Item currentItem) {
+    final ObjectPool<ObjectPool.Unit, Variable> pool = new ObjectPool<>();
+    final List<StackFrame> frames = new ArrayList<>(depth);
+    for (int i = 0; i < depth; i++) {
+      final Item item = currentItem != null && i == depth - 1 ? currentItem : contextStack[i].getContextItem();
+      frames.add(createStackFrame(instructionStack[i], contextStack[i], item, pool));
+    }
+    return new PauseSnapshot(frames, Arrays.asList(Arrays.copyOf(nodeStack, nodeDepth)), createGlobalScope(pool),
+        pool);
+  }
+
+  /**
+   * Reads the global variables and parameters the run has evaluated so far
+   * from the bindery. The others are left unevaluated.
+   */
+  private GlobalScope createGlobalScope(final ObjectPool<ObjectPool.Unit, Variable> pool) {
+    final List<Variable> variables = new ArrayList<>();
+    if (controller == null || !(controller.getExecutable() instanceof PreparedStylesheet)) {
+      return new GlobalScope(pool, variables);
+    }
+    final List<Component> globals = new ArrayList<>();
+    for (final Component component : ((PreparedStylesheet) controller.getExecutable()).getTopLevelPackage()
+        .getComponentIndex().values()) {
+      if (component.getActor() instanceof GlobalVariable) {
+        globals.add(component);
       }
     }
+    Collections.sort(globals, new Comparator<Component>() {
+      @Override
+      public int compare(final Component a, final Component b) {
+        return nameOf(a).compareTo(nameOf(b));
+      }
+    });
+    final GlobalVariable onStack = globalOnStack(globals);
+    for (final Component component : globals) {
+      final GlobalVariable global = (GlobalVariable) component.getActor();
+      GroundedValue value = controller.getBindery(global.getPackageData()).getGlobalVariableValue(global);
+      if (value instanceof Bindery.FailureValue) {
+        value = new StringValue("error: " + ((Bindery.FailureValue) value).getObject().getMessage());
+      }
+      if (value != null) {
+        variables.add(new Variable(nameOf(component), value, pool));
+      } else {
+        variables.add(new UnevaluatedGlobal(nameOf(component), global, component, this, onStack, pool));
+      }
+    }
+    return new GlobalScope(pool, variables);
+  }
+
+  /**
+   * The innermost global whose select the transform is paused inside, e.g. in
+   * a function it calls, or null
+   */
+  private GlobalVariable globalOnStack(final List<Component> globals) {
+    for (int i = depth - 1; i >= 0; i--) {
+      final InstructionInfo info = instructionStack[i];
+      final int construct = info.getConstructType();
+      if (construct != StandardNames.XSL_VARIABLE && construct != StandardNames.XSL_PARAM) {
+        continue;
+      }
+      for (final Component component : globals) {
+        final GlobalVariable global = (GlobalVariable) component.getActor();
+        if (global.getVariableQName().equals(info.getObjectName())
+            && info.getLineNumber() == global.getLineNumber()
+            && String.valueOf(info.getSystemId()).equals(String.valueOf(global.getSystemId()))) {
+          return global;
+        }
+      }
+    }
+    return null;
+  }
+
+  private static String nameOf(final Component global) {
+    return ((GlobalVariable) global.getActor()).getVariableQName().getClarkName();
+  }
+
+  private StackFrame createStackFrame(final InstructionInfo info, final XPathContext context, final Item i,
+      final ObjectPool<ObjectPool.Unit, Variable> pool) {
+    final int lineNumber = info.getLineNumber();
+    final int columnNumber = info.getColumnNumber();
+    final String systemId = normalize(info.getSystemId());
+
+    final String construct = InstructionTable.getConstructName(info.getConstructType());
 
-    final Object i = context.getContextItem();
     NodeInfo node = null;
     if (i instanceof NodeInfo) {
       node = (NodeInfo) i;
@@ -209,7 +568,7 @@ public class XSLTDebugTraceListener implements TraceListener {
     try {
       context.getLocalParameters().materializeValues();
     } catch (final XPathException e) {
-      this.context.getProtocolServer().sendEvent(Events.OutputEvent.createStderrOutput(e.getLocalizedMessage()));
+      run.getProtocolServer().sendEvent(Events.OutputEvent.createStderrOutput(e.getLocalizedMessage()));
     }
     for (final StructuredQName param : context.getLocalParameters().getParameterNames()) {
       try {
@@ -231,9 +590,9 @@ public class XSLTDebugTraceListener implements TraceListener {
       final String name = context.getStackFrame().getStackFrameMap().getVariableMap().get(p).getClarkName();
       try {
         if (v != null) {
-          variables.add(new Variable(name, v.iterate().materialize(), variablesPool));
+          variables.add(new Variable(name, v.iterate().materialize(), pool));
         } else {
-          variables.add(new Variable(name, null, variablesPool));
+          variables.add(new Variable(name, null, pool));
         }
         p++;
       } catch (XPathException e) {
@@ -241,21 +600,8 @@ public class XSLTDebugTraceListener implements TraceListener {
       }
     }
 
-    synchronized (lock) {
-      instructionStack.push(new StackFrame(variablesPool, systemId, lineNumber, columnNumber, construct, node, parameters, variables));
-    }
-
-    for (final XSLTBreakpoint b : breakpoints) {
-      if (b.path.equals(AdapterUtils.convertPath(systemId, true, false))
-          && b.line == AdapterUtils.convertLineNumber(lineNumber, false, true)) {
-        // System.err.println(String.format("PAUSING %d:%d", lineNumber, columnNumber));
-        this.context.getProtocolServer().sendEvent(new Events.StoppedEvent("breakpoint", 1));
-        spinUntilUnpaused();
-        break;
-      }
-    }
-
-    // System.err.println(String.format("ENTERED %d:%d", lineNumber, columnNumber));
+    return new StackFrame(pool, systemId, lineNumber, columnNumber, construct, node, parameters, variables,
+        i, info instanceof TraceExpression ? ((TraceExpression) info).getNamespaceResolver() : null);
   }
 
   /**
@@ -271,12 +617,40 @@ public class XSLTDebugTraceListener implements TraceListener {
   public void leave(final InstructionInfo instruction) {
     // System.err.println(String.format("LEAVING %d:%d",
     // instruction.getLineNumber(), instruction.getColumnNumber()));
-    // synchronized (lock) {
-    //   StackFrame top = instructionStack.pop();
-    //   for (Variable v : top.getChildren()) {
-    //     variablesPool.removeAllOwnedBy(v);
-    //   }
-    // }
+    if (runningPausedTask) {
+      return;
+    }
+    if (traced != null && !traced.accepts(instruction)) {
+      return;
+    }
+    if (profiler != null) {
+      if (sampledDepth > 0) {
+        sampledDepth--;
+      }
+      return;
+    }
+    if (counter != null) {
+      counter.leave(instruction);
+      return;
+    }
+    if (memo != null) {
+      memo.leave(instruction);
+      return;
+    }
+    if (provenance != null) {
+      provenance.leave();
+    }
+    if (allocations != null) {
+      allocations.leave(instruction);
+    }
+    if (watchdog != null) {
+      watchdog.leave(instruction.getConstructType());
+    }
+    if (depth > 0) {
+      depth--;
+      instructionStack[depth] = null;
+      contextStack[depth] = null;
+    }
   }
 
   /**
@@ -289,9 +663,56 @@ public class XSLTDebugTraceListener implements TraceListener {
    *                    safe to retain a reference to the Item for later use.
    */
   public void startCurrentItem(final Item currentItem) {
-    synchronized (lock) {
-      nodeStack.push(currentItem);
+    if (runningPausedTask) {
+      return;
+    }
+    itemCount++;
+    if (heatmap != null) {
+      heatmap.visit(currentItem);
+    }
+    if (counter != null) {
+      counter.visit(currentItem);
+    }
+    if (nodeDepth == nodeStack.length) {
+      nodeStack = Arrays.copyOf(nodeStack, nodeDepth * 2);
+    }
+    nodeStack[nodeDepth++] = currentItem;
+
+    if (profiler == null && counter == null && memo == null && isSourceBreakpoint(currentItem)) {
+      run.getContext().stoppedAtBreakpoint();
+      // The instruction that made the node current still has the old context item
+      spinUntilUnpaused("breakpoint", currentItem);
+    }
+  }
+
+  private boolean isSourceBreakpoint(final Item item) {
+    final List<XSLTBreakpoint> bs = breakpoints;
+    if (bs.isEmpty() || !(item instanceof NodeInfo)) {
+      return false;
+    }
+    if (bs != indexedBreakpoints) {
+      sourceLines.clear();
+      indexedDocuments.clear();
+      indexedBreakpoints = bs;
+      lastTree = null;
+    }
+    final NodeInfo node = (NodeInfo) item;
+    final TreeInfo tree = node.getTreeInfo();
+    if (tree != lastTree) {
+      lastTree = tree;
+      lastDocument = tree.getDocumentNumber();
+      if (!indexedDocuments.containsKey(lastDocument)) {
+        indexedDocuments.put(lastDocument, 1);
+        final String path = getSourcePath(tree.getRootNode().getSystemId());
+        for (final XSLTBreakpoint b : bs) {
+          if (b.path.equals(path)) {
+            sourceLines.put(lastDocument << 32 | b.line, 1);
+          }
+        }
+      }
     }
+    return sourceLines.size() > 0
+        && sourceLines.containsKey(lastDocument << 32 | AdapterUtils.convertLineNumber(node.getLineNumber(), false, true));
   }
 
   /**
@@ -306,8 +727,8 @@ public class XSLTDebugTraceListener implements TraceListener {
    *                    not necessarily be the same actual object.
    */
   public void endCurrentItem(final Item currentItem) {
-    synchronized (lock) {
-      nodeStack.pop();
+    if (!runningPausedTask && nodeDepth > 0) {
+      nodeStack[--nodeDepth] = null;
     }
   }
 }
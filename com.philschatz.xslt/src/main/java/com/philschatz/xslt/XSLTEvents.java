@@ -0,0 +1,64 @@
+package com.philschatz.xslt;
+
+import com.microsoft.java.debug.core.protocol.Events.DebugEvent;
+
+/**
+ * Custom events this adapter sends in addition to the ones in
+ * {@link com.microsoft.java.debug.core.protocol.Events}.
+ */
+public class XSLTEvents {
+
+  /** New output of a run, sent while it runs when "preview" is on */
+  public static class OutputPreviewEvent extends DebugEvent {
+    public long threadId;
+    /** Offset of the first character of text in the whole output */
+    public long start;
+    public String text;
+    /** Characters that were written since the last event but no longer fit in the buffer */
+    public long dropped;
+
+    public OutputPreviewEvent(long threadId, OutputPreview.Chunk chunk, long dropped) {
+      super("outputPreview");
+      this.threadId = threadId;
+      this.start = chunk.start;
+      this.text = chunk.text;
+      this.dropped = dropped;
+    }
+  }
+
+  /** The DAP progress events, which the protocol library does not know about */
+  public static class ProgressStartEvent extends DebugEvent {
+    public String progressId;
+    public String title;
+    public String message;
+
+    public ProgressStartEvent(String progressId, String title, String message) {
+      super("progressStart");
+      this.progressId = progressId;
+      this.title = title;
+      this.message = message;
+    }
+  }
+
+  public static class ProgressUpdateEvent extends DebugEvent {
+    public String progressId;
+    public String message;
+
+    public ProgressUpdateEvent(String progressId, String message) {
+      super("progressUpdate");
+      this.progressId = progressId;
+      this.message = message;
+    }
+  }
+
+  public static class ProgressEndEvent extends DebugEvent {
+    public String progressId;
+    public String message;
+
+    public ProgressEndEvent(String progressId, String message) {
+      super("progressEnd");
+      this.progressId = progressId;
+      this.message = message;
+    }
+  }
+}
@@ -0,0 +1,72 @@
+package com.philschatz.xslt;
+
+import com.microsoft.java.debug.core.protocol.Requests;
+
+/**
+ * The "launch" request arguments understood by this adapter. The stylesheet,
+ * source and destination paths are still passed as classPaths[0..2]; the fields
+ * below are optional extras from the launch configuration.
+ */
+public class XSLTLaunchArguments extends Requests.LaunchArguments {
+  /**
+   * "sampling" runs the transform without breakpoints and samples where the time
+   * goes; "counts" runs it without breakpoints and counts the instructions each
+   * template and function executes; "memo" runs it without breakpoints and
+   * reports the xsl:functions that are called again and again with the same
+   * arguments
+   */
+  public String profile;
+  /** How often the sampling profiler looks at the running transform */
+  public int sampleIntervalMicros = 1000;
+  /** Record which instruction and source node produced each chunk of output */
+  public boolean provenance;
+  /** Count how often each source node becomes the current item */
+  public boolean heatmap;
+  /** Parse the documents the stylesheet loads with doc('literal.xml') in parallel, before they are needed */
+  public boolean prefetch;
+  /** Report which variables build the biggest temporary trees and sequences */
+  public boolean allocations;
+  /** Keep the most recent output in memory so it can be shown while paused */
+  public boolean preview;
+  /** How much of the output the preview keeps */
+  public int previewBufferChars = 64 * 1024;
+  /** How often new output is sent as an "outputPreview" event; 0 to only send it on request */
+  public long previewIntervalMillis = 1000;
+  /** How often a running transform reports its progress, if the client supports it; 0 to turn it off */
+  public long progressIntervalMillis = 1000;
+  /** Report the documents, key indexes and result documents the transform holds on to */
+  public boolean resources;
+  /** Write xsl:result-document output on this many threads; 0 to leave it to Saxon */
+  public int resultDocumentThreads;
+  /** How much result-document output may wait for the writer threads before the transform does */
+  public long resultDocumentBufferBytes = 16 * 1024 * 1024;
+  /** Pause when templates and functions are nested deeper than this */
+  public int maxDepth;
+  /** Pause after this many instructions */
+  public long maxInstructions;
+  /** Pause after running for this long, not counting the time spent paused */
+  public long maxMillis;
+  /** Only trace these modules (paths, or the end of them) plus the ones with breakpoints */
+  public String[] traceModules;
+  /** Only trace these kinds of instruction, named as in the call stack, e.g. "xsl:template" */
+  public String[] traceKinds;
+  /** More inputs to run concurrently against the same stylesheet, each shown as its own thread */
+  public Input[] inputs;
+
+  public static class Input {
+    public String source;
+    public String destination;
+  }
+
+  public boolean isSampling() {
+    return "sampling".equals(profile);
+  }
+
+  public boolean isCounting() {
+    return "counts".equals(profile);
+  }
+
+  public boolean isMemo() {
+    return "memo".equals(profile);
+  }
+}
@@ -0,0 +1,43 @@
+package com.philschatz.xslt;
+
+import com.microsoft.java.debug.core.protocol.Requests;
+import com.microsoft.java.debug.core.protocol.Requests.Arguments;
+
+/**
+ * Arguments for the custom requests this adapter understands in addition to
+ * the ones in {@link com.microsoft.java.debug.core.protocol.Requests}.
+ */
+public class XSLTRequests {
+
+  /** Also reads what the protocol library's InitializeArguments leave out */
+  public static class InitializeArguments extends Requests.InitializeArguments {
+    public boolean supportsProgressReporting;
+  }
+
+  /** The DAP "cancel" request, which the protocol library does not know about */
+  public static class CancelArguments extends Arguments {
+    /** The seq of the request to cancel */
+    public Integer requestId;
+  }
+
+  public static class OutputPreviewArguments extends Arguments {
+    /** Which run's output; the first run if not given */
+    public long threadId;
+    /** Only return the output from this offset on */
+    public long since;
+  }
+
+  public static class ResourcesArguments extends Arguments {
+    /** Which run; the first run if not given */
+    public long threadId;
+  }
+
+  public static class OutputProvenanceArguments extends Arguments {
+    /** Which run's output; the first run if not given */
+    public long threadId;
+    /** 1-based line of the destination file */
+    public int line;
+    /** 0-based column of the destination file */
+    public int column;
+  }
+}
@@ -0,0 +1,92 @@
+package com.philschatz.xslt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.microsoft.java.debug.core.protocol.Responses.ResponseBody;
+import com.microsoft.java.debug.core.protocol.Types;
+
+/**
+ * Response bodies for the requests in {@link XSLTRequests}.
+ */
+public class XSLTResponses {
+
+  /** Capabilities that are newer than the protocol library */
+  public static class Capabilities extends Types.Capabilities {
+    public boolean supportsCancelRequest;
+  }
+
+  public static class OutputProvenanceResponseBody extends ResponseBody {
+    /** The instruction that wrote this part of the output */
+    public String instruction;
+    public Types.Source source;
+    public int line;
+    /** The context node at the time, if it was a node */
+    public Types.Source sourceDocument;
+    public int sourceDocumentLine;
+    /** Where this chunk of output starts */
+    public int outputLine;
+    public int outputColumn;
+
+    public OutputProvenanceResponseBody(ProvenanceIndex index, int chunk) {
+      this.instruction = index.getInstructionDescription(chunk);
+      if (index.getInstructionSystemId(chunk) != null) {
+        this.source = new Types.Source(index.getInstructionSystemId(chunk), 0);
+        this.line = index.getInstructionLine(chunk);
+      }
+      if (index.getSourceSystemId(chunk) != null) {
+        this.sourceDocument = new Types.Source(index.getSourceSystemId(chunk), 0);
+        this.sourceDocumentLine = index.getSourceLine(chunk);
+      }
+      this.outputLine = index.getStartLine(chunk);
+      this.outputColumn = index.getStartColumn(chunk);
+    }
+  }
+
+  public static class OutputPreviewResponseBody extends ResponseBody {
+    /** Offset of the first character of text in the whole output */
+    public long start;
+    public String text;
+    /** How many characters have been written so far; pass it as "since" to get only what is new */
+    public long written;
+
+    public OutputPreviewResponseBody(OutputPreview.Chunk chunk) {
+      this.start = chunk.start;
+      this.text = chunk.text;
+      this.written = chunk.written;
+    }
+  }
+
+  public static class ResourcesResponseBody extends ResponseBody {
+    public List<Document> documents = new ArrayList<>();
+    public List<KeyIndexInfo> keyIndexes = new ArrayList<>();
+    public List<ResultDocument> resultDocuments = new ArrayList<>();
+  }
+
+  public static class Document {
+    public String uri;
+    /** -1 when the tree is not a tiny tree */
+    public int nodes;
+    public int attributes;
+    public long approximateBytes;
+  }
+
+  public static class KeyIndexInfo {
+    public String name;
+    public String document;
+    /** Distinct key values */
+    public long keys;
+    /** Nodes indexed, counting a node once per key value */
+    public long entries;
+    public long approximateBytes;
+    /** Always -1: Saxon builds the index inside key(), where it cannot be timed */
+    public long buildMillis;
+  }
+
+  public static class ResultDocument {
+    public String uri;
+    public long bytes;
+    /** From when the result document was opened until it was closed */
+    public long millis;
+  }
+}
@@ -0,0 +1,379 @@
+package com.philschatz.xslt;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * A load generator for {@link XSLTDebugServer}. Starts a server in this JVM
+ * and opens concurrent sessions against it, each of which goes through
+ * initialize, launch, setBreakpoints, configurationDone and then a number of
+ * stackTrace / scopes / variables / continue rounds on a generated
+ * stylesheet, before letting the transform finish. Prints the p50 and p99
+ * latency of each command, the event rate and the server's heap and thread
+ * counts.
+ *
+ * Not a unit test (the name keeps surefire from running it):
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *   -Dexec.mainClass=com.philschatz.xslt.DebugServerLoad -Dexec.args="sessions rounds stops items"
+ * </pre>
+ */
+public class DebugServerLoad {
+  private static final long TIMEOUT_SECONDS = 60;
+  // The line of the generated stylesheet that has the breakpoint
+  private static final int BREAKPOINT_LINE = 12;
+
+  private final Map<String, List<Long>> latencies = new TreeMap<>();
+  private final AtomicLong events = new AtomicLong();
+  private final AtomicInteger failures = new AtomicInteger();
+  private volatile long peakHeap;
+  private volatile int peakThreads;
+
+  public static void main(String[] args) throws Exception {
+    int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+    int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+    int stops = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+    int items = args.length > 3 ? Integer.parseInt(args[3]) : 500;
+    new DebugServerLoad().run(sessions, rounds, stops, items);
+    System.exit(0);
+  }
+
+  private void run(int sessions, final int rounds, final int stops, int items) throws Exception {
+    File dir = File.createTempFile("xslt-debug-load", "");
+    dir.delete();
+    dir.mkdirs();
+    final File stylesheet = writeStylesheet(dir);
+    final File input = writeInput(dir, items);
+    final File outputs = new File(dir, "out");
+    outputs.mkdirs();
+
+    final XSLTDebugServer server = new XSLTDebugServer(0);
+    server.start();
+    final int port = server.getPort();
+
+    Thread monitor = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        while (!Thread.currentThread().isInterrupted()) {
+          peakHeap = Math.max(peakHeap, memory.getHeapMemoryUsage().getUsed());
+          peakThreads = Math.max(peakThreads, threads.getThreadCount());
+          try {
+            Thread.sleep(100);
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+      }
+    }, "Load Monitor");
+    monitor.setDaemon(true);
+    monitor.start();
+
+    final CountDownLatch done = new CountDownLatch(sessions);
+    long start = System.nanoTime();
+    for (int i = 0; i < sessions; i++) {
+      final int session = i;
+      new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (int round = 0; round < rounds; round++) {
+              File output = new File(outputs, String.format("%d-%d.xml", session, round));
+              runSession(port, stylesheet, input, output, stops);
+            }
+          } catch (Exception e) {
+            failures.incrementAndGet();
+            e.printStackTrace();
+          } finally {
+            done.countDown();
+          }
+        }
+      }, "Load Session " + i).start();
+    }
+    done.await();
+    long elapsed = System.nanoTime() - start;
+    monitor.interrupt();
+    server.stop();
+    report(sessions, rounds, elapsed);
+  }
+
+  /** One connection: launch, stop a few times and inspect, then run to the end */
+  private void runSession(int port, File stylesheet, File input, File output, int stops) throws Exception {
+    Client client = new Client(new Socket("localhost", port));
+    try {
+      client.request("initialize", new JsonObject());
+      JsonObject launch = new JsonObject();
+      JsonArray classPaths = new JsonArray();
+      classPaths.add(stylesheet.getPath());
+      classPaths.add(input.getPath());
+      classPaths.add(output.getPath());
+      launch.add("classPaths", classPaths);
+      client.request("launch", launch);
+      client.request("setBreakpoints", breakpoints(stylesheet, BREAKPOINT_LINE));
+      client.request("configurationDone", new JsonObject());
+
+      for (int i = 0; i < stops; i++) {
+        JsonObject stopped = client.awaitEvent("stopped");
+        int threadId = stopped.getAsJsonObject("body").get("threadId").getAsInt();
+
+        JsonObject args = new JsonObject();
+        args.addProperty("threadId", threadId);
+        args.addProperty("levels", 20);
+        JsonArray frames = client.request("stackTrace", args).getAsJsonObject("body").getAsJsonArray("stackFrames");
+
+        args = new JsonObject();
+        args.addProperty("frameId", frames.get(0).getAsJsonObject().get("id").getAsInt());
+        JsonArray scopes = client.request("scopes", args).getAsJsonObject("body").getAsJsonArray("scopes");
+
+        args = new JsonObject();
+        args.addProperty("variablesReference", scopes.get(0).getAsJsonObject().get("variablesReference").getAsInt());
+        client.request("variables", args);
+
+        if (i == stops - 1) {
+          client.request("setBreakpoints", breakpoints(stylesheet));
+        }
+        args = new JsonObject();
+        args.addProperty("threadId", threadId);
+        client.request("continue", args);
+      }
+      client.awaitEvent("terminated");
+      client.request("disconnect", new JsonObject());
+    } finally {
+      client.close();
+    }
+  }
+
+  private static JsonObject breakpoints(File stylesheet, int... lines) {
+    JsonObject args = new JsonObject();
+    JsonObject source = new JsonObject();
+    source.addProperty("path", stylesheet.getPath());
+    args.add("source", source);
+    JsonArray breakpoints = new JsonArray();
+    for (int line : lines) {
+      JsonObject b = new JsonObject();
+      b.addProperty("line", line);
+      breakpoints.add(b);
+    }
+    args.add("breakpoints", breakpoints);
+    return args;
+  }
+
+  private synchronized void record(String command, long nanos) {
+    List<Long> l = latencies.get(command);
+    if (l == null) {
+      l = new ArrayList<>();
+      latencies.put(command, l);
+    }
+    l.add(nanos);
+  }
+
+  private synchronized void report(int sessions, int rounds, long elapsedNanos) {
+    double seconds = elapsedNanos / 1e9;
+    System.out.println(String.format("%d sessions x %d rounds in %.1fs, %d failed", sessions, rounds, seconds,
+        failures.get()));
+    System.out.println("command\tcount\tp50 ms\tp99 ms\tmax ms");
+    for (Map.Entry<String, List<Long>> e : latencies.entrySet()) {
+      long[] sorted = new long[e.getValue().size()];
+      for (int i = 0; i < sorted.length; i++) {
+        sorted[i] = e.getValue().get(i);
+      }
+      Arrays.sort(sorted);
+      System.out.println(String.format("%s\t%d\t%.2f\t%.2f\t%.2f", e.getKey(), sorted.length, percentile(sorted, 50),
+          percentile(sorted, 99), sorted[sorted.length - 1] / 1e6));
+    }
+    System.out.println(String.format("events: %d (%.0f/s)", events.get(), events.get() / seconds));
+    System.out.println(String.format("peak heap: %dMB, peak threads: %d", peakHeap >> 20, peakThreads));
+  }
+
+  private static double percentile(long[] sorted, int p) {
+    int i = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(sorted.length - 1, i))] / 1e6;
+  }
+
+  private static File writeStylesheet(File dir) throws IOException {
+    File f = new File(dir, "load.xsl");
+    PrintWriter out = new PrintWriter(f, "UTF-8");
+    try {
+      out.println("<xsl:stylesheet version=\"2.0\" xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\"");
+      out.println("    xmlns:f=\"urn:load\" xmlns:xs=\"http://www.w3.org/2001/XMLSchema\" exclude-result-prefixes=\"#all\">");
+      out.println("  <xsl:function name=\"f:label\" as=\"xs:string\">");
+      out.println("    <xsl:param name=\"n\" as=\"xs:integer\"/>");
+      out.println("    <xsl:sequence select=\"concat('item-', $n)\"/>");
+      out.println("  </xsl:function>");
+      out.println("  <xsl:template match=\"/\">");
+      out.println("    <out><xsl:apply-templates select=\"//item\"/></out>");
+      out.println("  </xsl:template>");
+      out.println("  <xsl:template match=\"item\">");
+      out.println("    <xsl:variable name=\"label\" select=\"f:label(xs:integer(@n))\"/>");
+      // BREAKPOINT_LINE
+      out.println("    <result label=\"{$label}\"><xsl:value-of select=\"sum(../item[@n &lt; current()/@n]/@n)\"/></result>");
+      out.println("  </xsl:template>");
+      out.println("</xsl:stylesheet>");
+    } finally {
+      out.close();
+    }
+    return f;
+  }
+
+  private static File writeInput(File dir, int items) throws IOException {
+    File f = new File(dir, "load.xml");
+    PrintWriter out = new PrintWriter(f, "UTF-8");
+    try {
+      out.println("<items>");
+      for (int i = 0; i < items; i++) {
+        out.println(String.format("  <item n=\"%d\"/>", i));
+      }
+      out.println("</items>");
+    } finally {
+      out.close();
+    }
+    return f;
+  }
+
+  /** A minimal DAP client: Content-Length framed JSON over a socket */
+  private class Client implements Runnable {
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private final Map<Integer, BlockingQueue<JsonObject>> pending = new ConcurrentHashMap<>();
+    private final BlockingQueue<JsonObject> received = new LinkedBlockingQueue<>();
+    private int seq = 1;
+
+    Client(Socket socket) throws IOException {
+      this.socket = socket;
+      socket.setTcpNoDelay(true);
+      this.in = new BufferedInputStream(socket.getInputStream());
+      this.out = socket.getOutputStream();
+      Thread reader = new Thread(this, "Load Client Reader");
+      reader.setDaemon(true);
+      reader.start();
+    }
+
+    JsonObject request(String command, JsonObject arguments) throws Exception {
+      JsonObject request = new JsonObject();
+      int id = seq++;
+      request.addProperty("seq", id);
+      request.addProperty("type", "request");
+      request.addProperty("command", command);
+      request.add("arguments", arguments);
+      BlockingQueue<JsonObject> answer = new ArrayBlockingQueue<>(1);
+      pending.put(id, answer);
+
+      long start = System.nanoTime();
+      byte[] body = request.toString().getBytes(StandardCharsets.UTF_8);
+      ByteArrayOutputStream message = new ByteArrayOutputStream(body.length + 32);
+      message.write(("Content-Length: " + body.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+      message.write(body);
+      // One write per message, or Nagle's algorithm adds to the measured latency
+      synchronized (out) {
+        message.writeTo(out);
+        out.flush();
+      }
+      JsonObject response = answer.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+      record(command, System.nanoTime() - start);
+      if (response == null) {
+        throw new IOException(String.format("No response to %s", command));
+      }
+      if (!response.get("success").getAsBoolean()) {
+        throw new IOException(String.format("%s failed: %s", command, response));
+      }
+      return response;
+    }
+
+    JsonObject awaitEvent(String event) throws Exception {
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+      while (true) {
+        JsonObject e = received.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        if (e == null) {
+          throw new IOException(String.format("No %s event", event));
+        }
+        if (event.equals(e.get("event").getAsString())) {
+          return e;
+        }
+      }
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          int length = -1;
+          String header;
+          while (!(header = readLine()).isEmpty()) {
+            if (header.startsWith("Content-Length:")) {
+              length = Integer.parseInt(header.substring("Content-Length:".length()).trim());
+            }
+          }
+          byte[] body = new byte[length];
+          int read = 0;
+          while (read < length) {
+            int n = in.read(body, read, length - read);
+            if (n < 0) {
+              return;
+            }
+            read += n;
+          }
+          JsonObject message = new JsonParser().parse(new String(body, StandardCharsets.UTF_8)).getAsJsonObject();
+          if ("response".equals(message.get("type").getAsString())) {
+            BlockingQueue<JsonObject> answer = pending.remove(message.get("request_seq").getAsInt());
+            if (answer != null) {
+              answer.add(message);
+            }
+          } else {
+            events.incrementAndGet();
+            received.add(message);
+          }
+        }
+      } catch (IOException e) {
+        // closed
+      }
+    }
+
+    private String readLine() throws IOException {
+      ByteArrayOutputStream line = new ByteArrayOutputStream();
+      int c;
+      while ((c = in.read()) != '\n') {
+        if (c < 0) {
+          throw new IOException("Connection closed");
+        }
+        if (c != '\r') {
+          line.write(c);
+        }
+      }
+      return new String(line.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+    void close() throws IOException {
+      socket.close();
+    }
+  }
+}
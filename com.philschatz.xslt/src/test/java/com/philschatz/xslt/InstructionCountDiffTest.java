@@ -0,0 +1,101 @@
+package com.philschatz.xslt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class InstructionCountDiffTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final ByteArrayOutputStream printed = new ByteArrayOutputStream();
+
+  private String report(String name, String... rows) throws IOException {
+    File file = folder.newFile(name);
+    PrintWriter out = new PrintWriter(file, "UTF-8");
+    try {
+      out.println(InstructionCounter.HEADER);
+      for (String row : rows) {
+        out.println(row);
+      }
+    } finally {
+      out.close();
+    }
+    return file.getPath();
+  }
+
+  private int diff(String baseline, String current, double threshold) throws IOException {
+    return InstructionCountDiff.diff(baseline, current, threshold, new PrintStream(printed, true, "UTF-8"));
+  }
+
+  private String printed() throws IOException {
+    return printed.toString("UTF-8");
+  }
+
+  @Test
+  public void unchangedReportsPass() throws IOException {
+    String baseline = report("a.tsv", "xsl:template\tmatch=/ (t.xsl)\t1\t100", "document\tin.xml\t20\t0");
+    String current = report("b.tsv", "xsl:template\tmatch=/ (t.xsl)\t1\t100", "document\tin.xml\t20\t0");
+    assertEquals(0, diff(baseline, current, 5));
+    assertTrue(printed().contains("0 of 2 entries grew"));
+  }
+
+  @Test
+  public void growthAboveTheThresholdFails() throws IOException {
+    String baseline = report("a.tsv", "xsl:template\tmatch=/ (t.xsl)\t1\t100", "xsl:function\tf:g (t.xsl)\t10\t50");
+    String current = report("b.tsv", "xsl:template\tmatch=/ (t.xsl)\t1\t110", "xsl:function\tf:g (t.xsl)\t10\t52");
+    assertEquals(1, diff(baseline, current, 5));
+    assertTrue(printed().contains("GREW\tinstructions 100 -> 110 (+10.0%)\txsl:template\tmatch=/ (t.xsl)"));
+    assertFalse(printed().contains("f:g"));
+  }
+
+  @Test
+  public void growthBelowTheThresholdPasses() throws IOException {
+    String baseline = report("a.tsv", "xsl:template\tmatch=/ (t.xsl)\t1\t100");
+    String current = report("b.tsv", "xsl:template\tmatch=/ (t.xsl)\t1\t110");
+    assertEquals(0, diff(baseline, current, 20));
+  }
+
+  @Test
+  public void moreCallsCountAsGrowth() throws IOException {
+    String baseline = report("a.tsv", "document\tin.xml\t20\t0");
+    String current = report("b.tsv", "document\tin.xml\t40\t0");
+    assertEquals(1, diff(baseline, current, 5));
+    assertTrue(printed().contains("GREW\tcalls 20 -> 40 (+100.0%)\tdocument\tin.xml"));
+  }
+
+  @Test
+  public void newAndGoneEntriesAreListedButDoNotFail() throws IOException {
+    String baseline = report("a.tsv", "xsl:template\tmatch=a (t.xsl)\t1\t10");
+    String current = report("b.tsv", "xsl:template\tmatch=b (t.xsl)\t1\t10");
+    assertEquals(0, diff(baseline, current, 5));
+    assertTrue(printed().contains("new\t1\t10\txsl:template\tmatch=b (t.xsl)"));
+    assertTrue(printed().contains("gone\txsl:template\tmatch=a (t.xsl)"));
+  }
+
+  @Test
+  public void rejectsAFileWithoutTheHeader() throws IOException {
+    File other = folder.newFile("other.tsv");
+    PrintWriter out = new PrintWriter(other, "UTF-8");
+    out.println("calls\tinstructions\tname");
+    out.close();
+    String current = report("b.tsv");
+    try {
+      diff(other.getPath(), current, 5);
+      fail();
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("is not an instruction count report"));
+    }
+  }
+}
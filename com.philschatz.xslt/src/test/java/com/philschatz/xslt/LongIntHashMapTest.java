@@ -0,0 +1,74 @@
+package com.philschatz.xslt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class LongIntHashMapTest {
+  @Test
+  public void missingKeysAreZero() {
+    LongIntHashMap map = new LongIntHashMap();
+    assertEquals(0, map.get(42));
+    assertFalse(map.containsKey(42));
+    assertEquals(0, map.size());
+  }
+
+  @Test
+  public void putAndIncrement() {
+    LongIntHashMap map = new LongIntHashMap();
+    map.put(7, 3);
+    assertEquals(4, map.increment(7));
+    assertEquals(1, map.increment(8));
+    assertEquals(4, map.get(7));
+    assertEquals(1, map.get(8));
+    assertEquals(2, map.size());
+  }
+
+  @Test
+  public void keysThatAreNotSmallNumbers() {
+    LongIntHashMap map = new LongIntHashMap();
+    long[] keys = { 0, -1, Long.MIN_VALUE, Long.MAX_VALUE, 1L << 32, 5L << 32 | 0x80000000L };
+    for (int i = 0; i < keys.length; i++) {
+      map.put(keys[i], i + 1);
+    }
+    for (int i = 0; i < keys.length; i++) {
+      assertEquals(i + 1, map.get(keys[i]));
+    }
+  }
+
+  @Test
+  public void growsPastItsExpectedSize() {
+    LongIntHashMap map = new LongIntHashMap(4);
+    for (long key = 0; key < 10000; key++) {
+      // Document and node numbers packed like in NodeHeatmap
+      map.increment(key % 7 << 32 | key);
+      map.increment(key % 7 << 32 | key);
+    }
+    assertEquals(10000, map.size());
+    for (long key = 0; key < 10000; key++) {
+      assertEquals(2, map.get(key % 7 << 32 | key));
+    }
+    assertEquals(0, map.get(10000));
+  }
+
+  @Test
+  public void keysAndClear() {
+    LongIntHashMap map = new LongIntHashMap();
+    map.increment(3);
+    map.increment(1);
+    map.increment(2);
+    long[] keys = map.keys();
+    Arrays.sort(keys);
+    assertTrue(Arrays.equals(new long[] { 1, 2, 3 }, keys));
+
+    map.clear();
+    assertEquals(0, map.size());
+    assertEquals(0, map.keys().length);
+    assertEquals(0, map.get(1));
+    assertEquals(1, map.increment(1));
+  }
+}
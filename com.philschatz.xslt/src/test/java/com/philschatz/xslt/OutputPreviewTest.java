@@ -0,0 +1,61 @@
+package com.philschatz.xslt;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+public class OutputPreviewTest {
+  private final StringWriter destination = new StringWriter();
+  private final OutputPreview preview = new OutputPreview(destination, 8);
+
+  @Test
+  public void keepsEverythingWhileItFits() throws IOException {
+    preview.write("abc");
+    preview.write('d');
+    OutputPreview.Chunk chunk = preview.read(0);
+    assertEquals(0, chunk.start);
+    assertEquals("abcd", chunk.text);
+    assertEquals(4, chunk.written);
+    assertEquals("cd", preview.read(2).text);
+  }
+
+  @Test
+  public void wrapsAround() throws IOException {
+    preview.write("abcdef");
+    preview.write("ghij".toCharArray(), 0, 4);
+    preview.write('k');
+    assertEquals("abcdefghijk", destination.toString());
+
+    // Only the last 8 characters are left, starting at offset 3
+    OutputPreview.Chunk chunk = preview.read(0);
+    assertEquals(3, chunk.start);
+    assertEquals("defghijk", chunk.text);
+    assertEquals(11, chunk.written);
+    assertEquals("ijk", preview.read(8).text);
+    assertEquals("", preview.read(11).text);
+  }
+
+  @Test
+  public void keepsTheTailOfAWriteLargerThanTheRing() throws IOException {
+    preview.write("xy");
+    preview.write("0123456789abcdef", 2, 12);
+    assertEquals("xy23456789abcd", destination.toString());
+
+    OutputPreview.Chunk chunk = preview.read(0);
+    assertEquals(6, chunk.start);
+    assertEquals("6789abcd", chunk.text);
+    assertEquals(14, chunk.written);
+  }
+
+  @Test
+  public void wrapsOnEveryCharacterWrite() throws IOException {
+    for (char c = 'a'; c <= 'z'; c++) {
+      preview.write(c);
+    }
+    assertEquals("stuvwxyz", preview.read(0).text);
+    assertEquals("yz", preview.read(24).text);
+  }
+}
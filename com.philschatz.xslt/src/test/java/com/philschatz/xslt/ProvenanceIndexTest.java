@@ -0,0 +1,78 @@
+package com.philschatz.xslt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ProvenanceIndexTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /** Chunks at 1:0, 1:10 and 3:0; the arrays are bigger than the index, the way the recorder grows them */
+  private static ProvenanceIndex index() {
+    long[] positions = { ProvenanceIndex.position(1, 0), ProvenanceIndex.position(1, 10), ProvenanceIndex.position(3, 0),
+        0 };
+    return new ProvenanceIndex(positions, new long[] { 0, 10, 25, 0 }, new int[] { 0, -1, 1, 0 },
+        new int[] { 0, -1, 0, 0 }, new int[] { 2, -1, 7, 0 }, 3, new String[] { "xsl:template match=/", "xsl:value-of" },
+        new String[] { "file:/t.xsl", "file:/t.xsl" }, new int[] { 4, 9 }, new String[] { "file:/in.xml" });
+  }
+
+  @Test
+  public void findsTheChunkCoveringAPosition() {
+    ProvenanceIndex index = index();
+    assertEquals(0, index.find(1, 0));
+    assertEquals(0, index.find(1, 9));
+    assertEquals(1, index.find(1, 10));
+    assertEquals(1, index.find(2, 500));
+    assertEquals(2, index.find(3, 0));
+    assertEquals(2, index.find(40, 0));
+    // Before any output
+    assertEquals(-1, index.find(0, 5));
+  }
+
+  @Test
+  public void readsBackWhatItWrote() throws IOException {
+    File file = folder.newFile("out.xml.provenance");
+    index().write(file);
+    ProvenanceIndex index = ProvenanceIndex.read(file);
+
+    assertEquals(3, index.size());
+    assertEquals(1, index.find(1, 12));
+    assertEquals(3, index.getStartLine(2));
+    assertEquals(10, index.getStartColumn(1));
+    assertEquals(25, index.getStartOffset(2));
+    assertEquals("xsl:template match=/", index.getInstructionDescription(0));
+    assertEquals("xsl:value-of", index.getInstructionDescription(2));
+    assertEquals("file:/t.xsl", index.getInstructionSystemId(2));
+    assertEquals(9, index.getInstructionLine(2));
+    assertEquals("file:/in.xml", index.getSourceSystemId(0));
+    assertEquals(7, index.getSourceLine(2));
+    // Output written outside any traced instruction
+    assertNull(index.getInstructionDescription(1));
+    assertNull(index.getSourceSystemId(1));
+    assertEquals(-1, index.getInstructionLine(1));
+  }
+
+  @Test
+  public void rejectsAnotherFile() throws IOException {
+    File file = folder.newFile("other");
+    PrintWriter out = new PrintWriter(file, "UTF-8");
+    out.println("not an index");
+    out.close();
+    try {
+      ProvenanceIndex.read(file);
+      fail();
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("Not a provenance index"));
+    }
+  }
+}
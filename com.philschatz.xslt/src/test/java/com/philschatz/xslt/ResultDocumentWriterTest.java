@@ -0,0 +1,94 @@
+package com.philschatz.xslt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import javax.xml.transform.stream.StreamSource;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.Xslt30Transformer;
+
+public class ResultDocumentWriterTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final Processor processor = new Processor(false);
+
+  /** Runs a template that writes the given result documents, each one the numbers 1 to n on separate lines */
+  private IOException write(int threads, String... hrefsAndCounts) throws SaxonApiException, IOException {
+    StringBuilder template = new StringBuilder();
+    for (int i = 0; i < hrefsAndCounts.length; i += 2) {
+      template.append(String.format("<xsl:result-document href='%s' method='text'>"
+          + "<xsl:value-of select='1 to %s' separator='&#10;'/></xsl:result-document>", hrefsAndCounts[i],
+          hrefsAndCounts[i + 1]));
+    }
+    String stylesheet = "<xsl:stylesheet version='3.0' xmlns:xsl='http://www.w3.org/1999/XSL/Transform'>"
+        + "<xsl:template name='main'>" + template + "</xsl:template></xsl:stylesheet>";
+    Xslt30Transformer transformer = processor.newXsltCompiler().compile(new StreamSource(new StringReader(stylesheet)))
+        .load30();
+    ResultDocumentWriter writer = new ResultDocumentWriter(processor, threads, 4 * ResultDocumentWriter.CHUNK_BYTES,
+        null);
+    transformer.setBaseOutputURI(new File(folder.getRoot(), "out.txt").toURI().toString());
+    transformer.setResultDocumentHandler(writer.newResultDocumentHandler());
+    IOException failure;
+    try {
+      transformer.callTemplate(new QName("main"));
+    } finally {
+      failure = writer.finish();
+    }
+    return failure;
+  }
+
+  private static String numbers(int n) {
+    StringBuilder s = new StringBuilder();
+    for (int i = 1; i <= n; i++) {
+      s.append(i == 1 ? "" : "\n").append(i);
+    }
+    return s.toString();
+  }
+
+  private String read(String name) throws IOException {
+    return new String(Files.readAllBytes(new File(folder.getRoot(), name).toPath()), StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void keepsTheChunksOfEachFileInOrder() throws SaxonApiException, IOException {
+    // About 290KB each, so every file spans several chunks and the chunk buffer fills up
+    assertNull(write(2, "a.txt", "50000", "b.txt", "50000", "c/d.txt", "50000"));
+    assertTrue(numbers(50000).length() > 4 * ResultDocumentWriter.CHUNK_BYTES);
+    assertEquals(numbers(50000), read("a.txt"));
+    assertEquals(numbers(50000), read("b.txt"));
+    assertEquals(numbers(50000), read("c/d.txt"));
+  }
+
+  @Test
+  public void createsAnEmptyResultDocument() throws SaxonApiException, IOException {
+    assertNull(write(1, "empty.txt", "0", "one.txt", "1"));
+    assertEquals("", read("empty.txt"));
+    assertEquals("1", read("one.txt"));
+  }
+
+  @Test
+  public void returnsTheErrorForAFileThatCannotBeWritten() throws SaxonApiException, IOException {
+    // A plain file where a directory should be
+    folder.newFile("blocked");
+    IOException failure = write(2, "blocked/a.txt", "10", "b.txt", "10");
+    assertNotNull(failure);
+    assertTrue(failure.getMessage(), failure.getMessage().contains("a.txt"));
+    assertEquals(numbers(10), read("b.txt"));
+  }
+}
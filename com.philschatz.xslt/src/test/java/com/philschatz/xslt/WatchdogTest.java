@@ -0,0 +1,90 @@
+package com.philschatz.xslt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import net.sf.saxon.om.StandardNames;
+
+public class WatchdogTest {
+  private static Watchdog watchdog(int maxDepth, long maxInstructions, long maxMillis) {
+    XSLTLaunchArguments options = new XSLTLaunchArguments();
+    options.maxDepth = maxDepth;
+    options.maxInstructions = maxInstructions;
+    options.maxMillis = maxMillis;
+    return Watchdog.create(options);
+  }
+
+  /** @return the first reason to pause in the next n instructions, or null */
+  private static String run(Watchdog watchdog, int n) {
+    for (int i = 0; i < n; i++) {
+      String reason = watchdog.enter(StandardNames.XSL_VALUE_OF);
+      if (reason != null) {
+        return reason;
+      }
+    }
+    return null;
+  }
+
+  @Test
+  public void noBudgetsNoWatchdog() {
+    assertNull(watchdog(0, 0, 0));
+  }
+
+  @Test
+  public void stopsDeepRecursionAndGrantsAnotherDepthOnContinue() {
+    Watchdog watchdog = watchdog(3, 0, 0);
+    for (int i = 0; i < 3; i++) {
+      assertNull(watchdog.enter(StandardNames.XSL_TEMPLATE));
+    }
+    assertEquals("Templates and functions are nested more than 3 deep (maxDepth)",
+        watchdog.enter(StandardNames.XSL_FUNCTION));
+    // Continuing allows 3 more levels
+    assertNull(watchdog.enter(StandardNames.XSL_TEMPLATE));
+    assertNull(watchdog.enter(StandardNames.XSL_TEMPLATE));
+    assertEquals("Templates and functions are nested more than 6 deep (maxDepth)",
+        watchdog.enter(StandardNames.XSL_TEMPLATE));
+  }
+
+  @Test
+  public void leavingATemplateFreesItsLevel() {
+    Watchdog watchdog = watchdog(2, 0, 0);
+    for (int i = 0; i < 10; i++) {
+      assertNull(watchdog.enter(StandardNames.XSL_TEMPLATE));
+      watchdog.leave(StandardNames.XSL_TEMPLATE);
+    }
+    // Other instructions do not count as a level
+    assertNull(run(watchdog, 10));
+  }
+
+  @Test
+  public void stopsAfterTheInstructionBudgetAndGrantsAFreshOneOnContinue() {
+    Watchdog watchdog = watchdog(0, 100, 0);
+    assertNull(run(watchdog, 100));
+    assertEquals("Ran 100 instructions (maxInstructions)", run(watchdog, 1));
+    assertNull(run(watchdog, 99));
+    assertEquals("Ran 200 instructions (maxInstructions)", run(watchdog, 1));
+  }
+
+  @Test
+  public void stopsAfterTheTimeBudgetAndGrantsAFreshOneOnContinue() throws InterruptedException {
+    Watchdog watchdog = watchdog(0, 0, 100);
+    // The clock is only read every 1024 instructions
+    assertNull(run(watchdog, 1024));
+    Thread.sleep(150);
+    assertEquals("Ran for more than 100ms (maxMillis)", run(watchdog, 1024));
+    assertNull(run(watchdog, 1024));
+    Thread.sleep(150);
+    assertNotNull(run(watchdog, 1024));
+  }
+
+  @Test
+  public void timeSpentPausedDoesNotCount() throws InterruptedException {
+    Watchdog watchdog = watchdog(0, 0, 100);
+    Thread.sleep(150);
+    watchdog.paused(300 * 1000000L);
+    assertNull(run(watchdog, 1024));
+  }
+}